@@ -0,0 +1,170 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the three {@link FFT} engines on the device at the lengths the audio pipeline chooses
+ * between: radix-2 at 8192, mixed-radix at 8000 and Bluestein at 8191. Each transform is warmed
+ * up, then timed over a number of runs; the median time per transform is logged under {@link #TAG}:
+ * <pre>
+ * adb shell am instrument -w -e class cs.umass.edu.myactivitiestoolkit.processing.FFTBenchmark \
+ *     cs.umass.edu.myactivitiestoolkit.test/androidx.test.runner.AndroidJUnitRunner
+ * adb logcat -s FFTBenchmark
+ * </pre>
+ * Every engine must also match a direct O(n^2) DFT of the same input, which is asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FFTBenchmark {
+
+    private static final String TAG = "FFTBenchmark";
+
+    /** The transform lengths: a power of two, 2^6 5^3 and a prime. */
+    private static final int[] LENGTHS = {8192, 8000, 8191};
+
+    /** The number of untimed transforms run first, so the JIT has compiled the engines. */
+    private static final int WARM_UP_RUNS = 20;
+
+    private static final int TIMED_RUNS = 50;
+
+    /** The largest error allowed in any bin, relative to the largest magnitude of the spectrum. */
+    private static final double TOLERANCE = 1e-12;
+
+    @Test
+    public void timeEngines() {
+        Random random = new Random(0);
+        for (int n : LENGTHS) {
+            double[] signal = new double[n];
+            for (int i = 0; i < n; i++) {
+                signal[i] = random.nextGaussian();
+            }
+            FFT fft = new FFT(n);
+            double[] expectedRe = new double[n];
+            double[] expectedIm = new double[n];
+            dft(signal, expectedRe, expectedIm);
+
+            double[] re = new double[n];
+            double[] im = new double[n];
+            double complex = timeComplex(fft, signal, re, im);
+            double error = complexError(re, im, expectedRe, expectedIm);
+            assertTrue("complex transform of length " + n + " is off by " + error, error <= TOLERANCE);
+            String result = String.format("n=%d: complex %.1f us (error %.1e)", n, complex, error);
+
+            if (n % 2 == 0) {
+                double[] x = new double[n];
+                double time = timeReal(fft, signal, x);
+                error = realError(x, expectedRe, expectedIm);
+                assertTrue("real transform of length " + n + " is off by " + error, error <= TOLERANCE);
+                result += String.format(", real %.1f us (error %.1e)", time, error);
+            }
+
+            Log.i(TAG, result);
+        }
+    }
+
+    /**
+     * @return the median time of a complex transform of the signal, in microseconds. The last
+     * transform is left in re and im.
+     */
+    private static double timeComplex(FFT fft, double[] signal, double[] re, double[] im) {
+        long[] nanos = new long[TIMED_RUNS];
+        for (int i = -WARM_UP_RUNS; i < TIMED_RUNS; i++) {
+            System.arraycopy(signal, 0, re, 0, signal.length);
+            Arrays.fill(im, 0);
+            long start = SystemClock.elapsedRealtimeNanos();
+            fft.fft(re, im);
+            if (i >= 0) {
+                nanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos[TIMED_RUNS / 2] / 1e3;
+    }
+
+    /**
+     * @return the median time of a real transform of the signal, in microseconds. The last
+     * packed half-spectrum is left in x.
+     */
+    private static double timeReal(FFT fft, double[] signal, double[] x) {
+        long[] nanos = new long[TIMED_RUNS];
+        for (int i = -WARM_UP_RUNS; i < TIMED_RUNS; i++) {
+            System.arraycopy(signal, 0, x, 0, signal.length);
+            long start = SystemClock.elapsedRealtimeNanos();
+            fft.realForward(x);
+            if (i >= 0) {
+                nanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos[TIMED_RUNS / 2] / 1e3;
+    }
+
+    /**
+     * Computes the DFT of a real signal directly. The twiddle for bin k and sample j is looked
+     * up at (j k) mod n, so the reference does not accumulate rounding in its angles.
+     */
+    private static void dft(double[] signal, double[] re, double[] im) {
+        int n = signal.length;
+        double[] cos = new double[n];
+        double[] sin = new double[n];
+        for (int i = 0; i < n; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / n);
+            sin[i] = Math.sin(2 * Math.PI * i / n);
+        }
+        for (int k = 0; k < n; k++) {
+            double sumRe = 0, sumIm = 0;
+            int index = 0;
+            for (int j = 0; j < n; j++) {
+                sumRe += signal[j] * cos[index];
+                sumIm -= signal[j] * sin[index];
+                index += k;
+                if (index >= n) {
+                    index -= n;
+                }
+            }
+            re[k] = sumRe;
+            im[k] = sumIm;
+        }
+    }
+
+    /**
+     * @return the largest error of the complex spectrum in any bin, relative to the largest
+     * magnitude of the expected spectrum.
+     */
+    private static double complexError(double[] re, double[] im, double[] expectedRe, double[] expectedIm) {
+        double error = 0, scale = 0;
+        for (int k = 0; k < re.length; k++) {
+            error = Math.max(error, Math.hypot(re[k] - expectedRe[k], im[k] - expectedIm[k]));
+            scale = Math.max(scale, Math.hypot(expectedRe[k], expectedIm[k]));
+        }
+        return error / scale;
+    }
+
+    /**
+     * @return the largest error of the packed half-spectrum written by
+     * {@link FFT#realForward(double[])} in any bin, relative to the largest magnitude of the
+     * expected spectrum.
+     */
+    private static double realError(double[] x, double[] expectedRe, double[] expectedIm) {
+        int half = x.length / 2;
+        double error = Math.max(Math.abs(x[0] - expectedRe[0]), Math.abs(x[1] - expectedRe[half]));
+        double scale = 0;
+        for (int k = 1; k < half; k++) {
+            error = Math.max(error, Math.hypot(x[2 * k] - expectedRe[k], x[2 * k + 1] - expectedIm[k]));
+        }
+        for (int k = 0; k < expectedRe.length; k++) {
+            scale = Math.max(scale, Math.hypot(expectedRe[k], expectedIm[k]));
+        }
+        return error / scale;
+    }
+}
@@ -0,0 +1,105 @@
+package cs.umass.edu.myactivitiestoolkit.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Times the NV21 decoders in {@link ImageFormatConverter} on the device, at the preview
+ * sizes the PPG sensor may be given: QCIF, VGA and 1080p. Each decoder is warmed up, then
+ * timed over a number of frames; the median time per frame is logged under {@link #TAG}:
+ * <pre>
+ * adb shell am instrument -w -e class cs.umass.edu.myactivitiestoolkit.util.ImageFormatConverterBenchmark \
+ *     cs.umass.edu.myactivitiestoolkit.test/androidx.test.runner.AndroidJUnitRunner
+ * adb logcat -s ImageFormatBenchmark
+ * </pre>
+ * The decoders must also agree pixel for pixel, which is asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageFormatConverterBenchmark {
+
+    private static final String TAG = "ImageFormatBenchmark";
+
+    /** The frame sizes, as {width, height}. */
+    private static final int[][] SIZES = {{176, 144}, {640, 480}, {1920, 1080}};
+
+    /** The number of untimed frames decoded first, so the JIT has compiled the decoders. */
+    private static final int WARM_UP_FRAMES = 20;
+
+    private static final int TIMED_FRAMES = 50;
+
+    /** A decoder under test. */
+    private interface Decoder {
+        void decode(int[] rgba, byte[] yuv420sp, int width, int height) throws InterruptedException;
+    }
+
+    private static final Decoder SCALAR = new Decoder() {
+        @Override
+        public void decode(int[] rgba, byte[] yuv420sp, int width, int height) {
+            ImageFormatConverter.decodeYUV420SP(rgba, yuv420sp, width, height);
+        }
+    };
+
+    private static final Decoder TABLE = new Decoder() {
+        @Override
+        public void decode(int[] rgba, byte[] yuv420sp, int width, int height) {
+            ImageFormatConverter.decodeYUV420SPTable(rgba, yuv420sp, width, height);
+        }
+    };
+
+    private static final Decoder PARALLEL = new Decoder() {
+        @Override
+        public void decode(int[] rgba, byte[] yuv420sp, int width, int height) throws InterruptedException {
+            ImageFormatConverter.decodeYUV420SPParallel(rgba, yuv420sp, width, height);
+        }
+    };
+
+    @Test
+    public void timeDecoders() throws InterruptedException {
+        Random random = new Random(0);
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            byte[] yuv420sp = new byte[width * height * 3 / 2];
+            random.nextBytes(yuv420sp);
+            int[] expected = new int[width * height];
+            int[] rgba = new int[width * height];
+            ImageFormatConverter.decodeYUV420SP(expected, yuv420sp, width, height);
+
+            double scalar = time(SCALAR, rgba, yuv420sp, width, height);
+            double table = time(TABLE, rgba, yuv420sp, width, height);
+            assertArrayEquals("table decoder differs at " + width + "x" + height, expected, rgba);
+            double parallel = time(PARALLEL, rgba, yuv420sp, width, height);
+            assertArrayEquals("parallel decoder differs at " + width + "x" + height, expected, rgba);
+
+            Log.i(TAG, String.format("%dx%d: scalar %.2f ms, table %.2f ms (%.1fx), parallel %.2f ms (%.1fx)",
+                    width, height, scalar, table, scalar / table, parallel, scalar / parallel));
+        }
+    }
+
+    /**
+     * @return the median time to decode one frame, in milliseconds.
+     */
+    private static double time(Decoder decoder, int[] rgba, byte[] yuv420sp, int width, int height)
+            throws InterruptedException {
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            decoder.decode(rgba, yuv420sp, width, height);
+        }
+        long[] nanos = new long[TIMED_FRAMES];
+        for (int i = 0; i < TIMED_FRAMES; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            decoder.decode(rgba, yuv420sp, width, height);
+            nanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[TIMED_FRAMES / 2] / 1e6;
+    }
+}
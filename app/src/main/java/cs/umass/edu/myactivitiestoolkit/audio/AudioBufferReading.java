@@ -7,23 +7,34 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder;
+import cs.umass.edu.myactivitiestoolkit.codec.BinaryWriter;
+import cs.umass.edu.myactivitiestoolkit.codec.ReadingEncoding;
+import cs.umass.edu.myactivitiestoolkit.storage.SpoolableReading;
 import edu.umass.cs.MHLClient.sensors.SensorReading;
 
 /**
- * Wraps an audio buffer into a sensor reading to send to the server.
+ * Wraps an audio buffer into a sensor reading to send to the server. In the binary
+ * encoding the buffer is sent as an audio block, compressed by an {@link AudioEncoder}
+ * if one is given.
  *
  * @author Sean Noran
  *
  * @see SensorReading
  * @see edu.umass.cs.MHLClient.client.MobileIOClient
  */
-public class AudioBufferReading extends SensorReading {
+public class AudioBufferReading extends SensorReading implements SpoolableReading {
 
     /**
-     * The entries in the feature vector.
+     * The audio samples, or null if they have already been compressed.
      */
     private final short[] buffer;
 
+    /**
+     * The binary payload, if the buffer was compressed when the reading was created.
+     */
+    private final BinaryWriter payload;
+
     /**
      * Instantiates an audio buffer reading.
      *
@@ -34,14 +45,49 @@ public class AudioBufferReading extends SensorReading {
      * @param buffer the microphone data buffer
      */
     public AudioBufferReading(String userID, String deviceType, String deviceID, long t, short[] buffer) {
+        this(userID, deviceType, deviceID, t, buffer, buffer.length, null);
+    }
+
+    /**
+     * Instantiates an audio buffer reading. If the binary encoding is in use, the buffer is
+     * compressed right away, so that an encoder shared by consecutive readings sees the
+     * buffers in recording order; otherwise it is copied, so the buffer may be reused.
+     *
+     * @param userID a 10-byte hex string identifying the current user.
+     * @param deviceType describes the device.
+     * @param deviceID unique device identifier.
+     * @param t the timestamp at which the event occurred, in Unix time by convention.
+     * @param buffer the microphone data buffer
+     * @param count the number of samples in the buffer
+     * @param encoder compresses the buffer in the binary encoding; may be null to send it uncompressed
+     */
+    public AudioBufferReading(String userID, String deviceType, String deviceID, long t, short[] buffer, int count, AudioEncoder encoder) {
         super(userID, deviceType, deviceID, "SENSOR_AUDIO", t);
-        this.buffer = buffer;
+        if (encoder != null && ReadingEncoding.isBinary("SENSOR_AUDIO")) {
+            this.payload = new BinaryWriter(16 + 2 * count);
+            this.payload.writeSignedVarLong(t);
+            encoder.encode(buffer, 0, count, this.payload);
+            this.buffer = null;
+        } else {
+            this.payload = null;
+            this.buffer = new short[count];
+            System.arraycopy(buffer, 0, this.buffer, 0, count);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
     @Override
-    protected JSONObject toJSONObject() {
+    public JSONObject toJSONObject() {
         JSONObject obj = getBaseJSONObject();
+        if (payload != null) {
+            return ReadingEncoding.toJSONObject(obj, timestamp, payload);
+        }
+        if (ReadingEncoding.isBinary("SENSOR_AUDIO")) {
+            BinaryWriter payload = new BinaryWriter(16 + 2 * buffer.length);
+            payload.writeSignedVarLong(timestamp);
+            AudioEncoder.writePCM(buffer, 0, buffer.length, payload);
+            return ReadingEncoding.toJSONObject(obj, timestamp, payload);
+        }
         JSONObject data = new JSONObject();
         try {
             data.put("t", timestamp);
@@ -86,6 +86,31 @@ public class MFCC
                         powerSpec.A[i][0] = re[i]*re[i] + im[i]*im[i];
                 }
 
+                return cepstrum(powerSpec);
+        }
+
+        /**
+         * Computes the cepstrum from a packed half-spectrum, as produced by
+         * {@link cs.umass.edu.myactivitiestoolkit.processing.FFT#realForward(double[])}.
+         * @param packed the packed spectrum of a real frame of length fftSize.
+         * @return the liftered mel-frequency cepstral coefficients.
+         */
+        public double[] cepstrum(double[] packed)
+        {
+                int last = numFreqs - 1;
+                Matrix powerSpec = new Matrix(numFreqs, 1);
+                powerSpec.A[0][0] = packed[0]*packed[0];
+                powerSpec.A[last][0] = packed[1]*packed[1];
+                for (int i = 1; i < last; i ++)
+                {
+                        powerSpec.A[i][0] = packed[2*i]*packed[2*i] + packed[2*i+1]*packed[2*i+1];
+                }
+
+                return cepstrum(powerSpec);
+        }
+
+        private double[] cepstrum(Matrix powerSpec)
+        {
                 // melWeights - melBands x numFreqs
                 // powerSpec  - numFreqs x 1
                 // melWeights*powerSpec - melBands x 1
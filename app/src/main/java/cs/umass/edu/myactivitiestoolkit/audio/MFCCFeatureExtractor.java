@@ -1,18 +1,16 @@
 package cs.umass.edu.myactivitiestoolkit.audio;
 
-import java.util.Arrays;
-
 import cs.umass.edu.myactivitiestoolkit.processing.FFT;
 
 public class MFCCFeatureExtractor {
 
 	
-	private static final int FFT_SIZE = 8192;
 	private static final int BITRATE = 8000;
+	private static final int FFT_SIZE = BITRATE;
     private static final int MFCCS_VALUE = 12;
     private static final int MEL_BANDS = 20;
     
-    private static FFT featureFFT = new FFT(FFT_SIZE);
+    private static FFT featureFFT = FFT.getInstance(FFT_SIZE);
     private static HammingWindow featureWin = new HammingWindow(BITRATE);
     private static MFCC featureMFCC = new MFCC(FFT_SIZE, MFCCS_VALUE, MEL_BANDS, BITRATE);
 
@@ -25,28 +23,23 @@ public class MFCCFeatureExtractor {
      */
     public static double[] computeFeaturesForFrame(short[] data16bit, int size, int index)
 	{
-		double[] fftBufferR = new double[FFT_SIZE];
-        double[] fftBufferI = new double[FFT_SIZE];
+		double[] fftBuffer = new double[FFT_SIZE];
         double[] featureCepstrum;
 
-        // Frequency analysis
-        Arrays.fill(fftBufferR, 0);
-        Arrays.fill(fftBufferI, 0);
-
         // Convert audio buffer to doubles
         for (int i = 0; i < size; i++)
         {
-                fftBufferR[i] = data16bit[index+i];
+                fftBuffer[i] = data16bit[index+i];
         }
 
         // In-place windowing
-        featureWin.applyWindow(fftBufferR);
+        featureWin.applyWindow(fftBuffer);
 
-        // In-place FFT
-        featureFFT.fft(fftBufferR, fftBufferI);
+        // In-place real-input FFT, the input is real so no imaginary buffer is needed
+        featureFFT.realForward(fftBuffer);
 
         // Get MFCCs
-        featureCepstrum = featureMFCC.cepstrum(fftBufferR, fftBufferI);
+        featureCepstrum = featureMFCC.cepstrum(fftBuffer);
         
         return featureCepstrum;
 	}
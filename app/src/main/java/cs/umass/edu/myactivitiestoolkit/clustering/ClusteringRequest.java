@@ -7,6 +7,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import cs.umass.edu.myactivitiestoolkit.codec.BinaryWriter;
+import cs.umass.edu.myactivitiestoolkit.codec.ReadingEncoding;
 import cs.umass.edu.myactivitiestoolkit.location.GPSLocation;
 import edu.umass.cs.MHLClient.sensors.SensorReading;
 
@@ -54,6 +56,16 @@ public class ClusteringRequest extends SensorReading {
     @Override
     protected JSONObject toJSONObject(){
         JSONObject obj = getBaseJSONObject();
+        if (ReadingEncoding.isBinary("SENSOR_CLUSTERING_REQUEST")) {
+            BinaryWriter payload = new BinaryWriter(32 + 16 * latitudes.length);
+            payload.writeSignedVarLong(timestamp);
+            payload.writeString(algorithm);
+            payload.writeSignedVarLong(k);
+            payload.writeVarLong(latitudes.length);
+            payload.writeDoubles(latitudes, 0, latitudes.length);
+            payload.writeDoubles(longitudes, 0, longitudes.length);
+            return ReadingEncoding.toJSONObject(obj, timestamp, payload);
+        }
         JSONObject data = new JSONObject();
 
         try {
@@ -0,0 +1,132 @@
+package cs.umass.edu.myactivitiestoolkit.codec;
+
+import static cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder.INDEX_ADJUSTMENTS;
+import static cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder.MAX_RICE_PARAMETER;
+import static cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder.PARTITION_SIZE;
+import static cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder.RICE_ESCAPE;
+import static cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder.STEP_SIZES;
+
+/**
+ * The reference decoder for blocks written by an {@link AudioEncoder}. Each block is
+ * decoded on its own, from the state stored in its header. Decoding a lossless block
+ * returns the original samples exactly; the server-side decoder should agree with this one
+ * sample for sample in every mode.
+ *
+ * @see AudioEncoder
+ */
+public final class AudioDecoder {
+
+    private AudioDecoder() {
+    }
+
+    /**
+     * Decodes one block.
+     * @param in the reader, positioned at the start of the block.
+     * @return the samples.
+     * @throws IllegalArgumentException if the block is malformed.
+     */
+    public static short[] decode(BinaryReader in) {
+        AudioEncoder.Mode mode = AudioEncoder.Mode.fromId(in.readByte());
+        int count = (int) in.readVarLong();
+        short[] samples = new short[count];
+        switch (mode) {
+            case DELTA_RICE:
+                decodeDeltaRice(in, samples);
+                break;
+            case IMA_ADPCM:
+                decodeAdpcm(in, samples);
+                break;
+            default:
+                in.readShorts(samples, 0, count);
+                break;
+        }
+        return samples;
+    }
+
+    private static void decodeDeltaRice(BinaryReader in, short[] samples) {
+        int previous = (int) in.readSignedVarLong();
+        BitReader bits = new BitReader(in);
+        for (int start = 0; start < samples.length; start += PARTITION_SIZE) {
+            int end = Math.min(samples.length, start + PARTITION_SIZE);
+            int k = bits.read(5);
+            for (int i = start; i < end; i++) {
+                int quotient = 0;
+                while (quotient < RICE_ESCAPE && bits.read(1) == 1) {
+                    quotient++;
+                }
+                int residual = quotient < RICE_ESCAPE
+                        ? (quotient << k) | bits.read(k)
+                        : bits.read(MAX_RICE_PARAMETER);
+                previous += (residual >>> 1) ^ -(residual & 1);
+                samples[i] = (short) previous;
+            }
+        }
+    }
+
+    private static void decodeAdpcm(BinaryReader in, short[] samples) {
+        int predictor = in.readShort();
+        int stepIndex = in.readByte();
+        if (stepIndex >= STEP_SIZES.length) {
+            throw new IllegalArgumentException("Invalid ADPCM step index " + stepIndex);
+        }
+        int packed = 0;
+        for (int i = 0; i < samples.length; i++) {
+            int code;
+            if ((i & 1) == 0) {
+                packed = in.readByte();
+                code = packed & 0x0F;
+            } else {
+                code = packed >> 4;
+            }
+            int step = STEP_SIZES[stepIndex];
+            int delta = step >> 3;
+            if ((code & 4) != 0) {
+                delta += step;
+            }
+            if ((code & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((code & 1) != 0) {
+                delta += step >> 2;
+            }
+            predictor += (code & 8) != 0 ? -delta : delta;
+            if (predictor > Short.MAX_VALUE) {
+                predictor = Short.MAX_VALUE;
+            } else if (predictor < Short.MIN_VALUE) {
+                predictor = Short.MIN_VALUE;
+            }
+            stepIndex += INDEX_ADJUSTMENTS[code];
+            if (stepIndex < 0) {
+                stepIndex = 0;
+            } else if (stepIndex >= STEP_SIZES.length) {
+                stepIndex = STEP_SIZES.length - 1;
+            }
+            samples[i] = (short) predictor;
+        }
+    }
+
+    /** Reads a bitstream most significant bit first. */
+    private static class BitReader {
+
+        private final BinaryReader in;
+
+        private long bits;
+
+        private int bitCount;
+
+        BitReader(BinaryReader in) {
+            this.in = in;
+        }
+
+        int read(int count) {
+            while (bitCount < count) {
+                bits = (bits << 8) | in.readByte();
+                bitCount += 8;
+            }
+            bitCount -= count;
+            int value = (int) (bits >>> bitCount) & ((1 << count) - 1);
+            bits &= (1L << bitCount) - 1;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package cs.umass.edu.myactivitiestoolkit.codec;
+
+/**
+ * Compresses a stream of 16-bit audio buffers, one block per buffer. The encoder carries
+ * its state from one buffer to the next, so there are no discontinuities at buffer
+ * boundaries, and writes that state into each block header, so every block can be decoded
+ * on its own by the {@link AudioDecoder}.
+ * <br><br>
+ * Every block starts with the {@link Mode#id mode id} and the varint number of samples,
+ * followed by the mode-specific data:
+ * <ul>
+ *     <li>{@link Mode#PCM}: the raw little-endian samples.</li>
+ *     <li>{@link Mode#DELTA_RICE}: the zig-zag varint of the sample preceding the block,
+ *     then a bitstream of the zig-zag encoded differences between consecutive samples in
+ *     partitions of {@link #PARTITION_SIZE}, each starting with its 5-bit Rice parameter k.
+ *     A difference u is coded as u &gt;&gt; k in unary, ones terminated by a zero, followed
+ *     by the k low bits of u; if u &gt;&gt; k reaches {@link #RICE_ESCAPE}, the ones are
+ *     followed by u in 17 bits instead. Lossless.</li>
+ *     <li>{@link Mode#IMA_ADPCM}: the 16-bit predictor and the step index, then one 4-bit
+ *     IMA ADPCM code per sample, two per byte, low nibble first. Lossy, 4:1.</li>
+ * </ul>
+ * Not thread-safe: buffers must be encoded in order, on one thread.
+ *
+ * @see AudioDecoder
+ */
+public class AudioEncoder {
+
+    /** The available codecs. */
+    public enum Mode {
+        PCM(0), DELTA_RICE(1), IMA_ADPCM(2);
+
+        /** The id written at the start of each block. */
+        public final int id;
+
+        Mode(int id) {
+            this.id = id;
+        }
+
+        /**
+         * @param id a mode id.
+         * @return the mode with the given id.
+         * @throws IllegalArgumentException if there is no such mode.
+         */
+        public static Mode fromId(int id) {
+            for (Mode mode : values()) {
+                if (mode.id == id) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown audio codec " + id);
+        }
+    }
+
+    /** The number of differences coded with the same Rice parameter. */
+    static final int PARTITION_SIZE = 256;
+
+    /** The unary quotient at which a difference is written raw. */
+    static final int RICE_ESCAPE = 24;
+
+    /** The largest Rice parameter; a zig-zag encoded 16-bit difference has at most 17 bits. */
+    static final int MAX_RICE_PARAMETER = 17;
+
+    /** The IMA ADPCM quantizer step sizes. */
+    static final int[] STEP_SIZES = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+            253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+            1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    /** The IMA ADPCM step index adjustment for each code. */
+    static final int[] INDEX_ADJUSTMENTS = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+
+    private final Mode mode;
+
+    /** The last sample of the previous buffer, for {@link Mode#DELTA_RICE}. */
+    private int previous;
+
+    /** The ADPCM decoder state the next block starts from. */
+    private int predictor, stepIndex;
+
+    /** The zig-zag encoded differences of the current partition. */
+    private final int[] residuals = new int[PARTITION_SIZE];
+
+    /** Bits not yet written, right-aligned. */
+    private long bits;
+
+    private int bitCount;
+
+    /**
+     * Creates an encoder.
+     * @param mode the codec.
+     */
+    public AudioEncoder(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return the codec.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Forgets the stream state, e.g. when recording restarts.
+     */
+    public void reset() {
+        previous = 0;
+        predictor = 0;
+        stepIndex = 0;
+    }
+
+    /**
+     * Encodes the next buffer of the stream as one block.
+     * @param samples the samples.
+     * @param offset the index of the first sample.
+     * @param count the number of samples.
+     * @param out receives the block.
+     */
+    public void encode(short[] samples, int offset, int count, BinaryWriter out) {
+        switch (mode) {
+            case DELTA_RICE:
+                encodeDeltaRice(samples, offset, count, out);
+                break;
+            case IMA_ADPCM:
+                encodeAdpcm(samples, offset, count, out);
+                break;
+            default:
+                writePCM(samples, offset, count, out);
+                break;
+        }
+    }
+
+    /**
+     * Writes samples as an uncompressed {@link Mode#PCM} block, which needs no encoder state.
+     * @param samples the samples.
+     * @param offset the index of the first sample.
+     * @param count the number of samples.
+     * @param out receives the block.
+     */
+    public static void writePCM(short[] samples, int offset, int count, BinaryWriter out) {
+        out.writeByte(Mode.PCM.id);
+        out.writeVarLong(count);
+        out.writeShorts(samples, offset, count);
+    }
+
+    private void encodeDeltaRice(short[] samples, int offset, int count, BinaryWriter out) {
+        out.writeByte(Mode.DELTA_RICE.id);
+        out.writeVarLong(count);
+        out.writeSignedVarLong(previous);
+        bits = 0;
+        bitCount = 0;
+        int previous = this.previous;
+        for (int start = offset, end = offset + count; start < end; start += PARTITION_SIZE) {
+            int n = Math.min(PARTITION_SIZE, end - start);
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                int sample = samples[start + i];
+                int difference = sample - previous;
+                int residual = (difference << 1) ^ (difference >> 31);
+                residuals[i] = residual;
+                sum += residual;
+                previous = sample;
+            }
+            // the largest k with n * 2^k <= sum is close to the optimal Rice parameter
+            int k = 0;
+            while (k < MAX_RICE_PARAMETER && ((long) n << (k + 1)) <= sum) {
+                k++;
+            }
+            writeBits(k, 5, out);
+            for (int i = 0; i < n; i++) {
+                int residual = residuals[i];
+                int quotient = residual >>> k;
+                if (quotient < RICE_ESCAPE) {
+                    // quotient ones, a zero, then the k low bits
+                    writeBits((((1L << quotient) - 1) << (k + 1)) | (residual & ((1 << k) - 1)), quotient + 1 + k, out);
+                } else {
+                    writeBits(((1L << RICE_ESCAPE) - 1) << MAX_RICE_PARAMETER | residual, RICE_ESCAPE + MAX_RICE_PARAMETER, out);
+                }
+            }
+        }
+        if (bitCount > 0) {
+            out.writeByte((int) (bits << (8 - bitCount)));
+        }
+        this.previous = previous;
+    }
+
+    /**
+     * Appends bits to the bitstream, most significant first.
+     * @param value the bits, right-aligned.
+     * @param count the number of bits, at most 56.
+     * @param out receives every completed byte.
+     */
+    private void writeBits(long value, int count, BinaryWriter out) {
+        bits = (bits << count) | value;
+        bitCount += count;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            out.writeByte((int) (bits >>> bitCount));
+        }
+        bits &= (1L << bitCount) - 1;
+    }
+
+    private void encodeAdpcm(short[] samples, int offset, int count, BinaryWriter out) {
+        out.writeByte(Mode.IMA_ADPCM.id);
+        out.writeVarLong(count);
+        out.writeShort(predictor);
+        out.writeByte(stepIndex);
+        int predictor = this.predictor;
+        int stepIndex = this.stepIndex;
+        int packed = 0;
+        for (int i = 0; i < count; i++) {
+            int step = STEP_SIZES[stepIndex];
+            int difference = samples[offset + i] - predictor;
+            int code = 0;
+            if (difference < 0) {
+                code = 8;
+                difference = -difference;
+            }
+            // quantize the difference and reconstruct it exactly as the decoder will
+            int delta = step >> 3;
+            if (difference >= step) {
+                code |= 4;
+                difference -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (difference >= step) {
+                code |= 2;
+                difference -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (difference >= step) {
+                code |= 1;
+                delta += step;
+            }
+            predictor += (code & 8) != 0 ? -delta : delta;
+            if (predictor > Short.MAX_VALUE) {
+                predictor = Short.MAX_VALUE;
+            } else if (predictor < Short.MIN_VALUE) {
+                predictor = Short.MIN_VALUE;
+            }
+            stepIndex += INDEX_ADJUSTMENTS[code];
+            if (stepIndex < 0) {
+                stepIndex = 0;
+            } else if (stepIndex >= STEP_SIZES.length) {
+                stepIndex = STEP_SIZES.length - 1;
+            }
+
+            if ((i & 1) == 0) {
+                packed = code;
+            } else {
+                out.writeByte(packed | (code << 4));
+            }
+        }
+        if ((count & 1) != 0) {
+            out.writeByte(packed);
+        }
+        this.predictor = predictor;
+        this.stepIndex = stepIndex;
+    }
+}
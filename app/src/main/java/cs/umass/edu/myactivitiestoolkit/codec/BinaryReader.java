@@ -0,0 +1,108 @@
+package cs.umass.edu.myactivitiestoolkit.codec;
+
+import android.util.Base64;
+
+/**
+ * Reads a frame written by a {@link BinaryWriter}. The phone never receives binary frames;
+ * this is the reference decoder the server-side decoders are checked against.
+ *
+ * @see BinaryWriter
+ */
+public class BinaryReader {
+
+    private final byte[] buffer;
+
+    private final int end;
+
+    private int position;
+
+    /**
+     * Creates a reader over an unframed payload.
+     * @param buffer the bytes.
+     * @param offset the index of the first payload byte.
+     * @param length the payload length.
+     */
+    public BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Creates a reader over the payload of a frame returned by {@link BinaryWriter#toBase64Frame()}.
+     * @param frame the Base64 encoded frame.
+     * @return the reader.
+     * @throws IllegalArgumentException if the frame has another format version or is truncated.
+     */
+    public static BinaryReader fromBase64Frame(String frame) {
+        byte[] bytes = Base64.decode(frame, Base64.NO_WRAP);
+        if (bytes.length == 0 || bytes[0] != BinaryWriter.FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary format version");
+        }
+        BinaryReader reader = new BinaryReader(bytes, 1, bytes.length - 1);
+        int length = (int) reader.readVarLong();
+        if (reader.remaining() != length) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return reader;
+    }
+
+    /**
+     * @return the number of payload bytes not read yet.
+     */
+    public int remaining() {
+        return end - position;
+    }
+
+    /**
+     * @return the next byte, from 0 to 255.
+     */
+    public int readByte() {
+        if (position >= end) {
+            throw new IllegalArgumentException("Read past the end of the payload");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * @return the next 16-bit little-endian value.
+     */
+    public short readShort() {
+        return (short) (readByte() | (readByte() << 8));
+    }
+
+    /**
+     * @return the next varint, interpreted as unsigned.
+     */
+    public long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b >= 0x80);
+        return value;
+    }
+
+    /**
+     * @return the next zig-zag encoded varint.
+     */
+    public long readSignedVarLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads 16-bit little-endian values.
+     * @param values receives the values.
+     * @param offset the index of the first value to read.
+     * @param count the number of values to read.
+     */
+    public void readShorts(short[] values, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            values[i] = readShort();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package cs.umass.edu.myactivitiestoolkit.codec;
+
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+
+/**
+ * Writes the payload of a binary-encoded {@link edu.umass.cs.MHLClient.sensors.SensorReading}
+ * into a growable byte array. Integers are written as LEB128 varints, signed values
+ * zig-zag encoded so that small negative numbers stay short, and primitive arrays
+ * are written raw in little-endian order, which is how the server decodes them with
+ * {@code struct} or {@code numpy.frombuffer}.
+ * <br><br>
+ * A finished payload is framed by {@link #toBase64Frame()}: a version byte and the varint
+ * payload length, followed by the payload. The header is written in front of the payload
+ * in space reserved up front, so framing never copies the payload.
+ *
+ * @see ReadingEncoding
+ */
+public class BinaryWriter {
+
+    /** The version of the binary format, written as the first byte of every frame. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** The space reserved for the frame header: the version byte and a 5-byte varint length. */
+    private static final int HEADER_CAPACITY = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+
+    private int position;
+
+    /**
+     * Creates a writer.
+     * @param capacity the expected payload size in bytes; the buffer grows as needed.
+     */
+    public BinaryWriter(int capacity) {
+        buffer = new byte[HEADER_CAPACITY + Math.max(16, capacity)];
+        position = HEADER_CAPACITY;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (position + bytes > buffer.length) {
+            byte[] grown = new byte[Math.max(position + bytes, 2 * buffer.length)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * @return the number of payload bytes written.
+     */
+    public int size() {
+        return position - HEADER_CAPACITY;
+    }
+
+    /**
+     * Writes a single byte.
+     * @param value the byte, in the low 8 bits.
+     */
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a 16-bit value in little-endian order.
+     * @param value the value, in the low 16 bits.
+     */
+    public void writeShort(int value) {
+        ensureCapacity(2);
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >> 8);
+        position += 2;
+    }
+
+    /**
+     * Writes an unsigned value as a varint: 7 bits per byte, least significant group first,
+     * with the high bit set on every byte but the last.
+     * @param value the value, interpreted as unsigned.
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a signed value as a zig-zag encoded varint, so values close to zero, positive
+     * or negative, take few bytes.
+     * @param value the value.
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a string as the varint length of its UTF-8 encoding, followed by the encoding.
+     * @param value the string.
+     */
+    public void writeString(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Writes 16-bit values in little-endian order.
+     * @param values the values.
+     * @param offset the index of the first value to write.
+     * @param count the number of values to write.
+     */
+    public void writeShorts(short[] values, int offset, int count) {
+        ensureCapacity(2 * count);
+        byte[] buffer = this.buffer;
+        int position = this.position;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            short value = values[i];
+            buffer[position] = (byte) value;
+            buffer[position + 1] = (byte) (value >> 8);
+            position += 2;
+        }
+        this.position = position;
+    }
+
+    private void writeIntUnchecked(int value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >> 8);
+        buffer[position + 2] = (byte) (value >> 16);
+        buffer[position + 3] = (byte) (value >> 24);
+        position += 4;
+    }
+
+    /**
+     * Writes 64-bit IEEE 754 doubles in little-endian order.
+     * @param values the values.
+     * @param offset the index of the first value to write.
+     * @param count the number of values to write.
+     */
+    public void writeDoubles(double[] values, int offset, int count) {
+        ensureCapacity(8 * count);
+        for (int i = offset, end = offset + count; i < end; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            writeIntUnchecked((int) bits);
+            writeIntUnchecked((int) (bits >>> 32));
+        }
+    }
+
+    /**
+     * Prepends the frame header to the payload and encodes the frame as Base64, which is
+     * how it is carried in the JSON envelope of a reading.
+     * @return the Base64 encoded frame, without line breaks.
+     */
+    public String toBase64Frame() {
+        int length = size();
+        int headerSize = 2;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            headerSize++;
+        }
+        int start = HEADER_CAPACITY - headerSize;
+        int index = start;
+        buffer[index++] = (byte) FORMAT_VERSION;
+        int rest = length;
+        while ((rest & ~0x7F) != 0) {
+            buffer[index++] = (byte) ((rest & 0x7F) | 0x80);
+            rest >>>= 7;
+        }
+        buffer[index] = (byte) rest;
+        return Base64.encodeToString(buffer, start, position - start, Base64.NO_WRAP);
+    }
+}
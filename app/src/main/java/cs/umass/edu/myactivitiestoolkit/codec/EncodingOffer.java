@@ -0,0 +1,48 @@
+package cs.umass.edu.myactivitiestoolkit.codec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.cs.MHLClient.sensors.SensorReading;
+
+/**
+ * Offers the server the encodings this client can send, in order of preference. A server
+ * that supports one of them replies with an "ENCODING_ACCEPTED" message naming it; a server
+ * that ignores the offer keeps receiving JSON.
+ *
+ * @see ReadingEncoding
+ */
+public class EncodingOffer extends SensorReading {
+
+    /**
+     * Instantiates an encoding offer.
+     * @param userID a 10-byte hex string identifying the current user.
+     * @param deviceType describes the device.
+     * @param deviceID unique device identifier.
+     * @param t the timestamp at which the offer was made, in Unix time by convention.
+     */
+    public EncodingOffer(String userID, String deviceType, String deviceID, long t) {
+        super(userID, deviceType, deviceID, "SENSOR_ENCODING_OFFER", t);
+    }
+
+    @Override
+    protected JSONObject toJSONObject() {
+        JSONObject obj = getBaseJSONObject();
+        JSONObject data = new JSONObject();
+
+        try {
+            JSONArray encodings = new JSONArray();
+            encodings.put(ReadingEncoding.BINARY);
+            encodings.put(ReadingEncoding.JSON);
+            data.put("t", timestamp);
+            data.put("encodings", encodings);
+
+            obj.put("data", data);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return obj;
+    }
+}
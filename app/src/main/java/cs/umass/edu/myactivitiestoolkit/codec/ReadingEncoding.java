@@ -0,0 +1,88 @@
+package cs.umass.edu.myactivitiestoolkit.codec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tracks which encoding the readings sent to the server use. Readings are sent as JSON
+ * until the server accepts the binary encoding offered by an {@link EncodingOffer} on
+ * connection; the choice is reset whenever the connection is lost, so a server that does
+ * not understand the binary encoding keeps receiving JSON.
+ * <br><br>
+ * The server relays readings to every consumer of the user's stream, not only to the one
+ * that accepted the encoding. The readings the web visualizer plots, listed in
+ * {@link #JSON_SENSOR_TYPES}, are therefore always sent as JSON, which the visualizer reads
+ * directly; only the bulky streams, such as audio, are binary encoded.
+ * <br><br>
+ * A binary-encoded reading keeps the JSON envelope required by the
+ * {@link edu.umass.cs.MHLClient.client.MobileIOClient}, but its data only holds the
+ * timestamp, the encoding name and the Base64 encoded frame written by a {@link BinaryWriter}.
+ *
+ * @see BinaryWriter
+ */
+public final class ReadingEncoding {
+
+    /** The name of the JSON encoding. */
+    public static final String JSON = "json";
+
+    /** The name of the binary encoding, including its format version. */
+    public static final String BINARY = "binary-v" + BinaryWriter.FORMAT_VERSION;
+
+    /** The sensor types read by the web visualizer, which are always sent as JSON. */
+    public static final Set<String> JSON_SENSOR_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "SENSOR_PPG", "SENSOR_HR", "SENSOR_ACCEL_WINDOW")));
+
+    /** True if the server has accepted the binary encoding on the current connection. */
+    private static volatile boolean sBinary;
+
+    private ReadingEncoding() {
+    }
+
+    /**
+     * @param sensorType the sensor type of a reading.
+     * @return true if readings of this type should be sent in the binary encoding.
+     */
+    public static boolean isBinary(String sensorType) {
+        return sBinary && !JSON_SENSOR_TYPES.contains(sensorType);
+    }
+
+    /**
+     * Sets the encoding accepted by the server.
+     * @param encoding the name of the accepted encoding.
+     */
+    public static void onEncodingAccepted(String encoding) {
+        sBinary = BINARY.equals(encoding);
+    }
+
+    /**
+     * Falls back to JSON, e.g. when the connection to the server is lost.
+     */
+    public static void reset() {
+        sBinary = false;
+    }
+
+    /**
+     * Puts a binary-encoded payload into the envelope of a reading.
+     * @param obj the base JSON object of the reading.
+     * @param timestamp the timestamp of the reading.
+     * @param payload the encoded payload.
+     * @return the JSON object.
+     */
+    public static JSONObject toJSONObject(JSONObject obj, long timestamp, BinaryWriter payload) {
+        JSONObject data = new JSONObject();
+        try {
+            data.put("t", timestamp);
+            data.put("encoding", BINARY);
+            data.put("payload", payload.toBase64Frame());
+            obj.put("data", data);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return obj;
+    }
+}
@@ -23,6 +23,7 @@ public class Constants {
         String BROADCAST_ANDROID_STEP_COUNT = "edu.umass.cs.my-activities-toolkit.action.broadcast-android-step-count";
         String BROADCAST_LOCAL_STEP_COUNT = "edu.umass.cs.my-activities-toolkit.action.broadcast-local-step-count";
         String BROADCAST_ACCELEROMETER_PEAK = "edu.umass.cs.my-activities-toolkit.action.broadcast-accelerometer-peak";
+        String BROADCAST_CADENCE = "edu.umass.cs.my-activities-toolkit.action.broadcast-cadence";
 
         String BROADCAST_ACTIVITY = "edu.umass.cs.my-activities-toolkit.action.broadcast-activity";
 
@@ -55,6 +56,7 @@ public class Constants {
         String ACCELEROMETER_PEAK_TIMESTAMP = "edu.umass.cs.my-activities-toolkit.key.accelerometer-peak-timestamp";
         String ACCELEROMETER_PEAK_VALUE = "edu.umass.cs.my-activities-toolkit.key.accelerometer-peak-value";
         String STEP_COUNT = "edu.umass.cs.my-activities-toolkit.key.step-count";
+        String CADENCE = "edu.umass.cs.my-activities-toolkit.key.cadence";
 
         String ACTIVITY = "edu.umass.cs.my-activities-toolkit.key.activity";
 
@@ -92,6 +94,7 @@ public class Constants {
     /** Timestamp-relevant constants */
     public interface TIMESTAMPS {
         long NANOSECONDS_PER_MILLISECOND = 1000000;
+        long NANOSECONDS_PER_SECOND = 1000000000;
     }
 
     /**
@@ -115,5 +118,6 @@ public class Constants {
         String ACTIVITY_DETECTED = "ACTIVITY_DETECTED";
         String SPEAKER_DETECTED = "SPEAKER_DETECTED";
         String CLUSTER = "CLUSTER";
+        String ENCODING_ACCEPTED = "ENCODING_ACCEPTED";
     }
 }
@@ -0,0 +1,505 @@
+package cs.umass.edu.myactivitiestoolkit.ppg;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cs.umass.edu.myactivitiestoolkit.constants.Constants;
+import cs.umass.edu.myactivitiestoolkit.processing.SampleRateEstimator;
+import cs.umass.edu.myactivitiestoolkit.util.ImageFormatConverter;
+
+/**
+ * Acquires PPG data with the camera2 API. Unlike the {@link PPGSensor}, it needs no preview
+ * surface, and therefore no overlay window: the back camera streams low-resolution
+ * {@link ImageFormat#YUV_420_888} frames into an {@link ImageReader}, with the torch on and
+ * the frame rate fixed, and the mean red value of each frame is read straight from the Y and
+ * V plane buffers, without copying them. Once the exposure has settled, auto-exposure and
+ * auto-white-balance are locked, so they do not flatten the pulse signal.
+ * <br><br>
+ * The region of each frame that is sampled is chosen by a {@link RegionCalibrator} once the
+ * exposure has been locked, so the calibration frames do not include the exposure ramp; until
+ * then the full frame is used. Frames are processed, and {@link PPGListener}s
+ * notified, on the camera thread, with the time each frame was exposed.
+ *
+ * @see PPGSensor
+ * @see ImageReader
+ * @see PPGListener
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2PPGSensor {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = Camera2PPGSensor.class.getName();
+
+    /** The smallest frame width to stream; smaller sizes are often upscaled crops. */
+    private static final int MIN_FRAME_WIDTH = 160;
+
+    /** The highest frame rate to lock the camera to, in frames per second. */
+    private static final int MAX_FRAME_RATE = 30;
+
+    /** The number of frames the image reader can hold while one is processed. */
+    private static final int MAX_IMAGES = 4;
+
+    /** The number of frames, about one second's worth, to let auto-exposure settle before locking it. */
+    private static final int EXPOSURE_SETTLE_FRAMES = 30;
+
+    /** The number of frames, about three seconds' worth, over which the region is calibrated. */
+    private static final int CALIBRATION_FRAMES = 90;
+
+    /** The largest noise variance the calibrated region may add, relative to the full frame's signal variance. */
+    private static final double CALIBRATION_TOLERANCE = 0.1;
+
+    private final CameraManager cameraManager;
+
+    /** The list of all clients listening for PPG sensor events. */
+    private final List<PPGListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Runs the camera callbacks and processes the frames. */
+    private HandlerThread cameraThread;
+
+    private Handler cameraHandler;
+
+    private CameraDevice camera;
+
+    private CameraCaptureSession session;
+
+    private ImageReader imageReader;
+
+    private CaptureRequest.Builder requestBuilder;
+
+    /** The frame size. */
+    private int width, height;
+
+    /** The fixed frame rate range, or null if the camera has none. */
+    private Range<Integer> fixedFrameRate;
+
+    /** The weight of each new frame interval in the frame rate estimate. */
+    private static final double RATE_SMOOTHING = 0.02;
+
+    /**
+     * Measures the frame rate from the frame timestamps. Without a fixed frame rate, the
+     * camera may deliver anywhere within its range, e.g. 15 - 30 fps, depending on the light.
+     */
+    private final SampleRateEstimator frameRateEstimator =
+            new SampleRateEstimator(Constants.TIMESTAMPS.NANOSECONDS_PER_SECOND, RATE_SMOOTHING);
+
+    /** The measured frame rate, in frames per second, or 0 until it has been measured. */
+    private volatile double measuredFrameRate;
+
+    /** Converts frame timestamps to wall-clock milliseconds, or 0 if the timestamps are not comparable. */
+    private long wallClockOffsetNanos;
+
+    /** The timestamp of the last frame, in nanoseconds, or 0 before the first frame. */
+    private long lastFrameNanos;
+
+    /** The number of frames received since the sensor started. */
+    private long frameCount;
+
+    /** The estimated number of frames the camera skipped, from the gaps between frame timestamps. */
+    private volatile long missedFrameCount;
+
+    /** Chooses the region while calibrating, null otherwise. */
+    private RegionCalibrator calibrator;
+
+    /** True once a capture result has reported auto-exposure and auto-white-balance locked. */
+    private boolean exposureLocked;
+
+    /** True once the calibration has started, so it is done only once per start. */
+    private boolean calibrationStarted;
+
+    /** Watches the capture results, after the lock has been requested, for it to take effect. */
+    private final CameraCaptureSession.CaptureCallback lockCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession captureSession, @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+            // devices that do not report a state are taken at their word
+            if ((aeState == null || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED)
+                    && (awbState == null || awbState == CaptureResult.CONTROL_AWB_STATE_LOCKED)) {
+                synchronized (Camera2PPGSensor.this) {
+                    exposureLocked = true;
+                }
+            }
+        }
+    };
+
+    /** The bounds of the sampled region, the right and bottom bounds exclusive, and the stride. */
+    private int left, top, right, bottom, stride = 1;
+
+    /** Added to the mean red value of the calibrated region, see {@link RegionCalibrator#getOffset()}. */
+    private double offset;
+
+    public Camera2PPGSensor(Context context) {
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    /**
+     * Registers a client to listen for PPG sensor events.
+     * @param listener a listener implementation.
+     */
+    public void registerListener(PPGListener listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters the specified listener.
+     * @param listener the reference to the listener to be unregistered.
+     */
+    public void unregisterListener(PPGListener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Unregisters all PPG sensor event listeners.
+     */
+    public void unregisterListeners(){
+        listeners.clear();
+    }
+
+    /**
+     * @return the estimated number of frames the camera skipped.
+     */
+    public long getMissedFrameCount() {
+        return missedFrameCount;
+    }
+
+    /**
+     * @return the frame rate measured from the frame timestamps, in frames per second, or 0
+     * until enough frames have arrived since the sensor started.
+     */
+    public double getFrameRate() {
+        return measuredFrameRate;
+    }
+
+    /**
+     * Opens the back camera and starts streaming frames. The camera is opened asynchronously;
+     * failures, e.g. a missing camera permission, are logged.
+     */
+    @SuppressLint("MissingPermission") // the camera permission is requested before the service starts
+    public synchronized void start() {
+        if (cameraThread != null) {
+            return;
+        }
+        cameraThread = new HandlerThread("PPGCamera");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+        try {
+            String cameraId = findCamera();
+            if (cameraId == null) {
+                Log.e(TAG, "No back-facing camera with a flash");
+                stop();
+                return;
+            }
+            if (!configure(cameraManager.getCameraCharacteristics(cameraId))) {
+                Log.e(TAG, "The camera has no YUV output");
+                stop();
+                return;
+            }
+            cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(@NonNull CameraDevice device) {
+                    synchronized (Camera2PPGSensor.this) {
+                        if (cameraThread == null) {
+                            device.close(); // stopped in the meantime
+                            return;
+                        }
+                        camera = device;
+                        createSession();
+                    }
+                }
+
+                @Override
+                public void onDisconnected(@NonNull CameraDevice device) {
+                    Log.d(TAG, "Camera disconnected");
+                    stop();
+                }
+
+                @Override
+                public void onError(@NonNull CameraDevice device, int error) {
+                    Log.e(TAG, "Camera error " + error);
+                    stop();
+                }
+            }, cameraHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not open the camera: " + e.getMessage());
+            stop();
+        } catch (SecurityException e) {
+            Log.e(TAG, "Camera permission not granted");
+            stop();
+        }
+    }
+
+    /**
+     * @return the id of the first back-facing camera with a flash, or null if there is none.
+     */
+    private String findCamera() throws CameraAccessException {
+        for (String id : cameraManager.getCameraIdList()) {
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK && Boolean.TRUE.equals(flash)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the smallest frame size at least {@link #MIN_FRAME_WIDTH} wide, or the largest
+     * size if there is none, and the fixed frame rate, and prepares the image reader and the
+     * region calibrator.
+     * @return false if the camera has no {@link ImageFormat#YUV_420_888} output sizes.
+     */
+    private boolean configure(CameraCharacteristics characteristics) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+        if (sizes == null || sizes.length == 0) {
+            return false;
+        }
+        Size frameSize = null, largest = null;
+        for (Size size : sizes) {
+            int area = size.getWidth() * size.getHeight();
+            if (largest == null || area > largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+            if (size.getWidth() >= MIN_FRAME_WIDTH && (frameSize == null
+                    || area < frameSize.getWidth() * frameSize.getHeight())) {
+                frameSize = size;
+            }
+        }
+        if (frameSize == null) {
+            frameSize = largest;
+        }
+        width = frameSize.getWidth();
+        height = frameSize.getHeight();
+
+        Range<Integer> frameRate = null;
+        Range<Integer>[] frameRates = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (frameRates != null) {
+            for (Range<Integer> range : frameRates) {
+                int max = range.getUpper();
+                if (range.getLower() == max && max <= MAX_FRAME_RATE && (frameRate == null || max > frameRate.getUpper())) {
+                    frameRate = range;
+                }
+            }
+        }
+        fixedFrameRate = frameRate;
+        Log.d(TAG, "width: " + width + " , height: " + height + ", frame rate: " + frameRate);
+
+        // frame timestamps share the elapsed realtime clock only if the camera says so
+        wallClockOffsetNanos = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (source != null && source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+                wallClockOffsetNanos = System.currentTimeMillis() * 1000000L - SystemClock.elapsedRealtimeNanos();
+            }
+        }
+
+        imageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_IMAGES);
+        imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                PPGEvent event = null;
+                synchronized (Camera2PPGSensor.this) {
+                    if (reader != imageReader) {
+                        return; // stopped in the meantime
+                    }
+                    Image image = reader.acquireNextImage();
+                    if (image != null) {
+                        try {
+                            event = processImage(image);
+                        } finally {
+                            image.close();
+                        }
+                    }
+                }
+                if (event != null) {
+                    for (PPGListener listener : listeners) {
+                        listener.onSensorChanged(event);
+                    }
+                }
+            }
+        }, cameraHandler);
+
+        calibrator = null;
+        exposureLocked = false;
+        calibrationStarted = false;
+        left = 0;
+        top = 0;
+        right = width;
+        bottom = height;
+        stride = 1;
+        offset = 0;
+        lastFrameNanos = 0;
+        frameRateEstimator.reset();
+        measuredFrameRate = 0;
+        frameCount = 0;
+        return true;
+    }
+
+    /**
+     * Creates the capture session streaming into the image reader, with no preview surface.
+     */
+    private void createSession() {
+        try {
+            requestBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            requestBuilder.addTarget(imageReader.getSurface());
+            requestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            // the torch needs auto-exposure without auto-flash
+            requestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
+            requestBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
+            if (fixedFrameRate != null) {
+                requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fixedFrameRate);
+            }
+            camera.createCaptureSession(Collections.singletonList(imageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession captureSession) {
+                            synchronized (Camera2PPGSensor.this) {
+                                if (camera == null) {
+                                    return;
+                                }
+                                session = captureSession;
+                                setRepeatingRequest(null);
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(@NonNull CameraCaptureSession captureSession) {
+                            Log.e(TAG, "Could not configure the capture session");
+                            stop();
+                        }
+                    }, cameraHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not create the capture session: " + e.getMessage());
+            stop();
+        }
+    }
+
+    /**
+     * @param callback receives the capture results, or null.
+     */
+    private void setRepeatingRequest(CameraCaptureSession.CaptureCallback callback) {
+        try {
+            session.setRepeatingRequest(requestBuilder.build(), callback, cameraHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not start capturing: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called on the camera thread, holding the lock, for each frame. The mean red value of the
+     * sampled region is computed straight from the plane buffers by
+     * {@link ImageFormatConverter#meanRed(java.nio.ByteBuffer, int, java.nio.ByteBuffer, int, int, int, int, int, int, int)}.
+     * Until the region has been calibrated, the full frame is used.
+     *
+     * @param image the frame, in YUV_420_888 format.
+     * @return the event to send to each {@link PPGListener}, with the time the frame was exposed.
+     */
+    private PPGEvent processImage(Image image) {
+        long nanos = image.getTimestamp();
+        // a variable frame rate only bounds the interval, so gaps are counted against the measured one
+        if (lastFrameNanos != 0 && frameRateEstimator.isReady()) {
+            long missed = Math.round((nanos - lastFrameNanos) * frameRateEstimator.getSampleRate()
+                    / Constants.TIMESTAMPS.NANOSECONDS_PER_SECOND) - 1;
+            if (missed > 0) {
+                missedFrameCount += missed;
+            }
+        }
+        lastFrameNanos = nanos;
+        frameRateEstimator.update(nanos);
+        if (frameRateEstimator.isReady()) {
+            measuredFrameRate = frameRateEstimator.getSampleRate();
+        }
+
+        if (++frameCount == EXPOSURE_SETTLE_FRAMES && session != null) {
+            requestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+            requestBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+            setRepeatingRequest(lockCallback);
+        }
+        // calibrate over locked frames only; if the lock is never reported, wait as long again
+        if (!calibrationStarted && (exposureLocked || frameCount >= 2 * EXPOSURE_SETTLE_FRAMES)) {
+            calibrator = new RegionCalibrator(width, height, CALIBRATION_FRAMES, CALIBRATION_TOLERANCE);
+            calibrationStarted = true;
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        Image.Plane yPlane = planes[0], vPlane = planes[2];
+        double meanRed;
+        if (calibrator != null) {
+            meanRed = calibrator.update(yPlane.getBuffer(), yPlane.getRowStride(),
+                    vPlane.getBuffer(), vPlane.getRowStride(), vPlane.getPixelStride());
+            if (calibrator.isDone()) {
+                left = calibrator.getLeft();
+                top = calibrator.getTop();
+                right = calibrator.getRight();
+                bottom = calibrator.getBottom();
+                stride = calibrator.getStride();
+                offset = calibrator.getOffset();
+                calibrator = null;
+                Log.d(TAG, "PPG region: [" + left + ", " + top + ", " + right + ", " + bottom + "), stride " + stride
+                        + ", offset " + offset);
+            }
+        } else {
+            meanRed = ImageFormatConverter.meanRed(yPlane.getBuffer(), yPlane.getRowStride(),
+                    vPlane.getBuffer(), vPlane.getRowStride(), vPlane.getPixelStride(),
+                    left, top, right, bottom, stride) + offset;
+        }
+
+        long timestamp = wallClockOffsetNanos != 0
+                ? (nanos + wallClockOffsetNanos) / 1000000L
+                : System.currentTimeMillis();
+        return new PPGEvent(timestamp, meanRed);
+    }
+
+    /**
+     * Stops streaming and releases the camera for other applications to use.
+     */
+    public synchronized void stop() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (camera != null) {
+            camera.close();
+            camera = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        if (cameraThread != null) {
+            cameraThread.quitSafely();
+            cameraThread = null;
+            cameraHandler = null;
+        }
+    }
+}
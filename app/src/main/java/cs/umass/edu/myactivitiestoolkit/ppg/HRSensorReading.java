@@ -3,6 +3,7 @@ package cs.umass.edu.myactivitiestoolkit.ppg;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import cs.umass.edu.myactivitiestoolkit.storage.SpoolableReading;
 import edu.umass.cs.MHLClient.sensors.SensorReading;
 
 /**
@@ -13,7 +14,7 @@ import edu.umass.cs.MHLClient.sensors.SensorReading;
  *
  * @see SensorReading
  */
-public class HRSensorReading extends SensorReading {
+public class HRSensorReading extends SensorReading implements SpoolableReading {
 
     /** The heart rate value. **/
     private final double value;
@@ -33,7 +34,7 @@ public class HRSensorReading extends SensorReading {
     }
 
     @Override
-    protected JSONObject toJSONObject(){
+    public JSONObject toJSONObject(){
         JSONObject obj = getBaseJSONObject();
         JSONObject data = new JSONObject();
 
@@ -1,9 +1,9 @@
 package cs.umass.edu.myactivitiestoolkit.ppg;
 
 import android.content.Context;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -11,9 +11,12 @@ import android.view.SurfaceHolder.Callback;
 import android.view.SurfaceView;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import cs.umass.edu.myactivitiestoolkit.constants.Constants;
+import cs.umass.edu.myactivitiestoolkit.processing.SampleRateEstimator;
+import cs.umass.edu.myactivitiestoolkit.util.BackpressureQueue;
 import cs.umass.edu.myactivitiestoolkit.util.ImageFormatConverter;
 
 /**
@@ -21,10 +24,12 @@ import cs.umass.edu.myactivitiestoolkit.util.ImageFormatConverter;
  *  a {@link Camera} object with the appropriate parameters, e.g. the preview size and resolution
  *  and flash mode, and registers a {@link android.hardware.Camera.PreviewCallback} for receiving
  *  pixel data each frame. The {@link #onPreviewFrame(byte[], Camera)} method is called with each
- *  frame. The raw data is in NV21 format and is converted already to RGB format for you.
+ *  frame and hands it to a dedicated frame thread, so that processing never delays the camera.
+ *  The raw data is in NV21 format; the mean red value is computed directly from it, without
+ *  decoding the frame to RGB pixels.
  *  <br><br>
  *  <b>ASSIGNMENT 4 (PHOTOPLETHYSMOGRAPHY)</b> :
- *  In {@link #onPreviewFrame(byte[], Camera)}, you should extract the mean red value from the
+ *  In {@link #processFrame(Frame)}, you should extract the mean red value from the
  *  pixel data and send it to all {@link PPGListener}s, maintained in the {@link #listeners}
  *  list. To ensure clean modular design, all PPG processing and heart-beat detection should
  *  be done in the {@link PPGListener#onSensorChanged(PPGEvent)} event, which you override
@@ -97,16 +102,86 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
      */
     private static final boolean showCamera = true;
 
-    /** The number of pixels in the camera preview, i.e. {@link #width} * {@link #height}. */
-    private int nPixels;
+    /**
+     * The list of all clients listening for PPG sensor events. Listeners register from
+     * their service's sensor thread while frames are delivered on the frame thread.
+     */
+    private final List<PPGListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** The number of frames, about three seconds' worth, over which the region is calibrated. */
+    private static final int CALIBRATION_FRAMES = 90;
+
+    /** The largest noise variance the calibrated region may add, relative to the full frame's signal variance. */
+    private static final double CALIBRATION_TOLERANCE = 0.1;
+
+    /** The size of the sampled region about the center, as a fraction of the frame size. */
+    private float regionFraction = 1f;
+
+    /** Only every stride-th pixel of every stride-th row of the region is sampled. */
+    private int stride = 1;
 
-    /** The array of RGB pixels in the camera preview data */
-    private int[] pixels;
+    /** Whether the region and stride are chosen by a {@link RegionCalibrator} on {@link #start()}. */
+    private boolean autoCalibrate = true;
+
+    /** Chooses the region while calibrating, null otherwise. */
+    private RegionCalibrator calibrator;
+
+    /** The bounds of the sampled region, the right and bottom bounds exclusive. */
+    private int left, top, right, bottom;
 
     /**
-     * The list of all clients listening for PPG sensor events.
+     * Added to the mean red value of a calibrated region, so that it continues at the level
+     * of the full frame used while calibrating, see {@link RegionCalibrator#getOffset()}.
      */
-    private final ArrayList<PPGListener> listeners = new ArrayList<>();
+    private double offset;
+
+    /** The default number of preview buffers, see {@link #setBufferCount(int)}. */
+    private static final int DEFAULT_BUFFER_COUNT = 5;
+
+    /** The highest frame rate to lock the preview to, in frames per second times 1000. */
+    private static final int MAX_FRAME_RATE = 30000;
+
+    /** The number of preview buffers shared by the camera and the frame thread. */
+    private int bufferCount = DEFAULT_BUFFER_COUNT;
+
+    /** Hands frames from the camera to the frame thread; null while stopped. */
+    private volatile BackpressureQueue<Frame> frameQueue;
+
+    /** The weight of each new frame interval in the frame rate estimate. */
+    private static final double RATE_SMOOTHING = 0.02;
+
+    /**
+     * Measures the frame rate from the frame timestamps. Without a fixed frame rate, the
+     * camera may deliver anywhere within its range, e.g. 15 - 30 fps, depending on the light.
+     */
+    private final SampleRateEstimator frameRateEstimator =
+            new SampleRateEstimator(Constants.TIMESTAMPS.NANOSECONDS_PER_SECOND, RATE_SMOOTHING);
+
+    /** The measured frame rate, in frames per second, or 0 until it has been measured. */
+    private volatile double measuredFrameRate;
+
+    /** When the last frame arrived, in nanoseconds, or 0 before the first frame. */
+    private long lastFrameNanos;
+
+    /** The number of frames discarded because the frame thread was behind. */
+    private volatile long droppedFrameCount;
+
+    /**
+     * The estimated number of frames the camera skipped, from the gaps between the frames
+     * that arrived, e.g. because it had no free buffer.
+     */
+    private volatile long missedFrameCount;
+
+    /** A preview frame, and when it arrived. */
+    private static final class Frame {
+        final byte[] data;
+        final long timestamp;
+
+        Frame(byte[] data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
 
     public PPGSensor(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -132,6 +207,85 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
         listeners.remove(listener);
     }
 
+    /**
+     * Samples a fixed region of each frame instead of calibrating one. Under the fingertip
+     * the frame is nearly uniform, so a small, sparsely sampled region gives the same
+     * signal at a fraction of the cost.
+     * @param fraction the size of the region about the center, as a fraction of the frame
+     *                 width and height, in (0, 1].
+     * @param stride only every stride-th pixel of every stride-th row is sampled.
+     */
+    public synchronized void setRegion(float fraction, int stride) {
+        if (fraction <= 0 || fraction > 1 || stride < 1) {
+            throw new IllegalArgumentException("Invalid region fraction " + fraction + " or stride " + stride);
+        }
+        this.regionFraction = fraction;
+        this.stride = stride;
+        this.autoCalibrate = false;
+        this.calibrator = null;
+        updateRegion();
+    }
+
+    /**
+     * Sets the number of preview buffers shared by the camera and the frame thread. With a
+     * single buffer, every frame arriving while the previous one is processed is lost; with
+     * several, the camera keeps filling free buffers and a slow frame is absorbed by the
+     * queue instead. Takes effect when the camera is initialized, i.e. must be called before
+     * the surface is created.
+     * @param bufferCount the number of buffers, at least 3: one being filled, one being
+     *                    processed and at least one queued.
+     */
+    public synchronized void setBufferCount(int bufferCount) {
+        if (bufferCount < 3) {
+            throw new IllegalArgumentException("At least 3 preview buffers are required");
+        }
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * @return the number of frames discarded because the frame thread was behind.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    /**
+     * @return the estimated number of frames the camera skipped, e.g. because it had no free buffer.
+     */
+    public long getMissedFrameCount() {
+        return missedFrameCount;
+    }
+
+    /**
+     * @return the frame rate measured from the frame timestamps, in frames per second, or 0
+     * until enough frames have arrived since the sensor started.
+     */
+    public double getFrameRate() {
+        return measuredFrameRate;
+    }
+
+    /**
+     * Sets whether the region and stride are calibrated each time the sensor is started,
+     * which is the default.
+     * @param autoCalibrate true to calibrate the region on {@link #start()}.
+     */
+    public synchronized void setAutoCalibrate(boolean autoCalibrate) {
+        this.autoCalibrate = autoCalibrate;
+    }
+
+    /**
+     * Computes the bounds of the sampled region from the frame size and region fraction.
+     */
+    private void updateRegion() {
+        int regionWidth = Math.max(1, Math.round(width * regionFraction));
+        int regionHeight = Math.max(1, Math.round(height * regionFraction));
+        left = (width - regionWidth) / 2;
+        top = (height - regionHeight) / 2;
+        right = left + regionWidth;
+        bottom = top + regionHeight;
+        offset = 0;
+    }
+
     /**
      * Unregisters all PPG sensor event listeners. No sensor events will be relayed to
      * any other application components as long as there are no registered listeners.
@@ -167,8 +321,42 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
      * register a {@link SurfaceCreatedCallback} to be notified.
      */
     public void start(){
-        mCamera.startPreview(); // start the camera
-        mCamera.setPreviewCallback(this);
+        synchronized (this) {
+            calibrator = autoCalibrate ? new RegionCalibrator(width, height, CALIBRATION_FRAMES, CALIBRATION_TOLERANCE) : null;
+            updateRegion();
+            lastFrameNanos = 0;
+            frameRateEstimator.reset();
+            measuredFrameRate = 0;
+            startFrameThread();
+            mCamera.setPreviewCallbackWithBuffer(this);
+            mCamera.startPreview(); // start the camera
+        }
+    }
+
+    /**
+     * Starts the thread that computes the mean red value of each queued frame and returns
+     * its buffer to the camera. It exits once its queue has been closed and emptied.
+     */
+    private void startFrameThread() {
+        // one buffer is being filled and one processed; a full queue drops the newest frame,
+        // so the camera never runs out of buffers and every lost frame is counted
+        final BackpressureQueue<Frame> queue = new BackpressureQueue<>(bufferCount - 2, BackpressureQueue.Policy.DROP_NEWEST);
+        frameQueue = queue;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Frame frame;
+                    while ((frame = queue.take()) != null) {
+                        processFrame(frame);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Log.d(TAG, String.format("Frame queue closed: %d frames offered, %d dropped, about %d missed",
+                        queue.getOfferedCount(), droppedFrameCount, missedFrameCount));
+            }
+        }, "PPGFrames").start();
     }
 
     /**
@@ -187,16 +375,34 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
         width = previewSize.width;
         height = previewSize.height;
         Log.d(TAG, "width: " + width + " , height: " + height);
-        nPixels = width * height;
-        pixels = new int[nPixels];
         setSize(width, height);
+        updateRegion();
         parameters.setPreviewSize(width, height);
 
+        // lock the frame rate where possible, so the PPG signal is uniformly sampled
+        int[] frameRate = null;
+        for (int[] range : parameters.getSupportedPreviewFpsRange()) {
+            int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            if (range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] == max && max <= MAX_FRAME_RATE
+                    && (frameRate == null || max > frameRate[1])) {
+                frameRate = new int[]{max, max};
+            }
+        }
+        if (frameRate != null) {
+            parameters.setPreviewFpsRange(frameRate[0], frameRate[1]);
+        } else {
+            frameRate = new int[2];
+            parameters.getPreviewFpsRange(frameRate);
+        }
+        Log.d(TAG, "frame rate: " + frameRate[0] / 1000.0 + " - " + frameRate[1] / 1000.0 + " fps");
+
         mCamera.setParameters(parameters);
 
         int dataBufferSize=(int)(height * width * (ImageFormat.getBitsPerPixel(parameters.getPreviewFormat())/8.0));
 
-        mCamera.addCallbackBuffer(new byte[dataBufferSize]);
+        for (int i = 0; i < bufferCount; i++) {
+            mCamera.addCallbackBuffer(new byte[dataBufferSize]);
+        }
         mCamera.setPreviewCallbackWithBuffer(this);
     }
 
@@ -205,14 +411,10 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
     }
 
     /**
-     * Called when each frame is captured by the camera. We already decode the data
-     * to RGB pixels for you. Your job is to compute the mean red value of each frame
-     * and send that data to each {@link PPGListener} in {@link #listeners}. You can
-     * use the {@link Color#red(int)} method to extract the amount of red from an RGB
-     * value.
-     * <br><br>
-     * For better results, try averaging only over a portion of the image about its
-     * center. You might try a radial or rectangular region.
+     * Called when each frame is captured by the camera. The frame is timestamped on arrival
+     * and handed to the frame thread, which calls {@link #processFrame(Frame)}; this keeps the
+     * camera thread free, so frames arrive at the camera's own, regular rate. If the frame
+     * thread is behind, the frame is dropped and counted, and its buffer returned at once.
      *
      * @param data the data, by default in NV21 (YUV420SP) image format.
      * @param camera a handle to the camera object.
@@ -220,12 +422,85 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
      */
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
-        camera.addCallbackBuffer(data);
+        long nanos = SystemClock.elapsedRealtimeNanos();
+        long timestamp = System.currentTimeMillis();
+        // a variable frame rate only bounds the interval, so gaps are counted against the measured one
+        if (lastFrameNanos != 0 && frameRateEstimator.isReady()) {
+            long missed = Math.round((nanos - lastFrameNanos) * frameRateEstimator.getSampleRate()
+                    / Constants.TIMESTAMPS.NANOSECONDS_PER_SECOND) - 1;
+            if (missed > 0) {
+                missedFrameCount += missed;
+            }
+        }
+        lastFrameNanos = nanos;
+        frameRateEstimator.update(nanos);
+        if (frameRateEstimator.isReady()) {
+            measuredFrameRate = frameRateEstimator.getSampleRate();
+        }
 
-        //Collect color data and store them but now replacing each frame with new frame
-        ImageFormatConverter.decodeYUV420SP(pixels, data, width, height);
+        BackpressureQueue<Frame> queue = frameQueue;
+        if (queue == null || !queue.offer(new Frame(data, timestamp))) {
+            droppedFrameCount++;
+            camera.addCallbackBuffer(data);
+        }
+    }
+
+    /**
+     * Called on the frame thread for each frame. The mean red value of the sampled region is
+     * computed straight from the NV21 data by
+     * {@link ImageFormatConverter#meanRed(byte[], int, int, int, int, int, int, int)}, which
+     * never materializes the RGB pixels, and sent, with the time the frame arrived, to each
+     * {@link PPGListener} in {@link #listeners}. While the region is being calibrated, the
+     * full frame is used.
+     *
+     * @param frame the frame, in NV21 (YUV420SP) image format.
+     */
+    private void processFrame(Frame frame) {
+        byte[] data = frame.data;
+        RegionCalibrator calibrator;
+        int left, top, right, bottom, stride;
+        double offset;
+        synchronized (this) {
+            calibrator = this.calibrator;
+            left = this.left;
+            top = this.top;
+            right = this.right;
+            bottom = this.bottom;
+            stride = this.stride;
+            offset = this.offset;
+        }
+        double meanRed;
+        if (calibrator != null) {
+            meanRed = calibrator.update(data);
+            if (calibrator.isDone()) {
+                synchronized (this) {
+                    if (this.calibrator == calibrator) {
+                        this.left = calibrator.getLeft();
+                        this.top = calibrator.getTop();
+                        this.right = calibrator.getRight();
+                        this.bottom = calibrator.getBottom();
+                        this.stride = calibrator.getStride();
+                        this.offset = calibrator.getOffset();
+                        this.calibrator = null;
+                    }
+                }
+                Log.d(TAG, "PPG region: [" + calibrator.getLeft() + ", " + calibrator.getTop() + ", "
+                        + calibrator.getRight() + ", " + calibrator.getBottom() + "), stride " + calibrator.getStride() + ", offset " + calibrator.getOffset());
+            }
+        } else {
+            meanRed = ImageFormatConverter.meanRed(data, width, height, left, top, right, bottom, stride) + offset;
+        }
+        // return the buffer only once it has been read, so a later frame cannot overwrite it
+        synchronized (this) {
+            if (mCamera != null) {
+                mCamera.addCallbackBuffer(data);
+            }
+        }
 
-        //TODO: Compute the mean red value and notify all listeners
+        PPGEvent event = new PPGEvent(frame.timestamp, meanRed);
+        for (PPGListener listener : listeners) {
+            listener.onSensorChanged(event);
+        }
     }
 
     /**
@@ -242,11 +517,17 @@ public class PPGSensor extends SurfaceView implements Callback, Camera.PreviewCa
      * Stops the camera recording and releases the camera for other applications to use.
      */
     public void stop(){
-        if (mCamera != null){
-            mCamera.stopPreview();
-            mCamera.setPreviewCallback(null);
-            mCamera.release();
-            mCamera = null;
+        synchronized (this) {
+            if (mCamera != null){
+                mCamera.stopPreview();
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mCamera.release();
+                mCamera = null;
+            }
+            if (frameQueue != null) {
+                frameQueue.close();
+                frameQueue = null;
+            }
         }
         if (mHolder != null) {
             mHolder.getSurface().release();
@@ -0,0 +1,256 @@
+package cs.umass.edu.myactivitiestoolkit.ppg;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import cs.umass.edu.myactivitiestoolkit.util.ImageFormatConverter;
+
+/**
+ * Picks the cheapest region of interest and pixel stride for computing the mean red value
+ * of PPG frames. Under the fingertip the image is nearly uniform, so a small centred box,
+ * sampled sparsely, carries the same pulse signal as the whole frame at a fraction of the
+ * cost. For a number of frames, the calibrator computes the mean red value of every
+ * candidate region. The chosen region is the one sampling the fewest pixels whose values
+ * differ from the full frame's by a noise variance within a tolerance of the full frame's
+ * signal variance. A region that is too small adds sensor noise, so it fails the test.
+ * Drift such as the finger settling or the exposure adjusting shifts all regions together,
+ * and would otherwise inflate the full frame's variance until any region passed: every
+ * series is detrended, and the full frame's signal variance is taken as the median of its
+ * squared detrended values, so the frames where the trend lags a sudden change are ignored.
+ * <br><br>
+ * The variance test says nothing about the level: under a lit fingertip the center is
+ * brighter than the frame average. So that the signal does not jump when a sensor switches
+ * from the full frame to the chosen region, {@link #getOffset()} gives the difference
+ * between the two levels over the last calibration frames, to add to the region's values.
+ *
+ * @see PPGSensor
+ * @see ImageFormatConverter#meanRed(byte[], int, int, int, int, int, int, int)
+ */
+public class RegionCalibrator {
+
+    /** The candidate box sizes, as a fraction of the frame width and height. */
+    private static final float[] FRACTIONS = {1f, 0.5f, 0.25f, 0.125f};
+
+    /** The candidate pixel strides. */
+    private static final int[] STRIDES = {1, 2, 4, 8};
+
+    /** The weight of each frame in the moving average of the level differences, about the last 10 frames. */
+    private static final double OFFSET_SMOOTHING = 0.1;
+
+    /**
+     * The weight of each frame in the trend removed from every series. The trend is a double
+     * moving average, which follows a ramp without lagging behind it, fast enough to catch up
+     * with the finger settling within a few frames. It also takes some of the pulse, which
+     * only makes the test stricter.
+     */
+    private static final double TREND_SMOOTHING = 0.15;
+
+    /** The fewest pixels a region may sample. */
+    private static final int MIN_SAMPLES = 64;
+
+    private final int frames;
+
+    private final double tolerance;
+
+    private final int width, height;
+
+    /** Per candidate: the region bounds and the number of pixels sampled. */
+    private final int[] lefts, tops, rights, bottoms, strides, samples;
+
+    /**
+     * Per candidate: the sum and sum of squares of its detrended mean red value minus the full
+     * frame's, i.e. the noise it adds.
+     */
+    private final double[] sums, sumsOfSquares;
+
+    /** Per frame: the square of the full frame's detrended mean red value. */
+    private final double[] fullSquares;
+
+    /**
+     * Per candidate: its mean red value in the current frame, the moving average of its mean
+     * red values and the moving average of that, and the moving average of the full frame's
+     * mean red value minus its own.
+     */
+    private final double[] means, averages, averagesOfAverages, offsets;
+
+    private int frameCount;
+
+    private int chosen;
+
+    /**
+     * Creates a calibrator.
+     * @param width the width of the frames.
+     * @param height the height of the frames.
+     * @param frames the number of frames to calibrate over, e.g. a few seconds' worth.
+     * @param tolerance the largest variance a region may add, relative to the full frame's, e.g. 0.1.
+     */
+    public RegionCalibrator(int width, int height, int frames, double tolerance) {
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        this.tolerance = tolerance;
+        int candidates = FRACTIONS.length * STRIDES.length;
+        lefts = new int[candidates];
+        tops = new int[candidates];
+        rights = new int[candidates];
+        bottoms = new int[candidates];
+        strides = new int[candidates];
+        samples = new int[candidates];
+        sums = new double[candidates];
+        sumsOfSquares = new double[candidates];
+        fullSquares = new double[frames];
+        means = new double[candidates];
+        averages = new double[candidates];
+        averagesOfAverages = new double[candidates];
+        offsets = new double[candidates];
+        // candidate 0 is the full frame, every pixel
+        for (int f = 0, c = 0; f < FRACTIONS.length; f++) {
+            int boxWidth = Math.max(1, Math.round(width * FRACTIONS[f]));
+            int boxHeight = Math.max(1, Math.round(height * FRACTIONS[f]));
+            for (int stride : STRIDES) {
+                lefts[c] = (width - boxWidth) / 2;
+                tops[c] = (height - boxHeight) / 2;
+                rights[c] = lefts[c] + boxWidth;
+                bottoms[c] = tops[c] + boxHeight;
+                strides[c] = stride;
+                samples[c] = ((boxWidth + stride - 1) / stride) * ((boxHeight + stride - 1) / stride);
+                c++;
+            }
+        }
+    }
+
+    /**
+     * @return true once the region has been chosen.
+     */
+    public boolean isDone() {
+        return frameCount >= frames;
+    }
+
+    /**
+     * Adds a frame.
+     * @param yuv420sp the frame, in NV21 format.
+     * @return the mean red value of the full frame.
+     */
+    public double update(byte[] yuv420sp) {
+        for (int c = 0; c < sums.length; c++) {
+            add(c, ImageFormatConverter.meanRed(yuv420sp, width, height,
+                    lefts[c], tops[c], rights[c], bottoms[c], strides[c]));
+        }
+        return endFrame();
+    }
+
+    /**
+     * Adds a frame in YUV_420_888 format, read straight from its planes.
+     * @param yPlane the Y plane, one byte per pixel.
+     * @param yRowStride the distance between Y rows, in bytes.
+     * @param vPlane the V plane, subsampled by 2 in both directions.
+     * @param vRowStride the distance between V rows, in bytes.
+     * @param vPixelStride the distance between V samples within a row, in bytes.
+     * @return the mean red value of the full frame.
+     */
+    public double update(ByteBuffer yPlane, int yRowStride, ByteBuffer vPlane, int vRowStride, int vPixelStride) {
+        for (int c = 0; c < sums.length; c++) {
+            add(c, ImageFormatConverter.meanRed(yPlane, yRowStride, vPlane, vRowStride, vPixelStride,
+                    lefts[c], tops[c], rights[c], bottoms[c], strides[c]));
+        }
+        return endFrame();
+    }
+
+    private void add(int candidate, double meanRed) {
+        means[candidate] = meanRed;
+        if (frameCount == 0) {
+            averages[candidate] = meanRed;
+            averagesOfAverages[candidate] = meanRed;
+        } else {
+            averages[candidate] += TREND_SMOOTHING * (meanRed - averages[candidate]);
+            averagesOfAverages[candidate] += TREND_SMOOTHING * (averages[candidate] - averagesOfAverages[candidate]);
+        }
+    }
+
+    /**
+     * @return the mean red value of a candidate in the current frame, minus its trend.
+     */
+    private double detrended(int candidate) {
+        return means[candidate] - (2 * averages[candidate] - averagesOfAverages[candidate]);
+    }
+
+    /**
+     * @return the mean red value of the full frame just added.
+     */
+    private double endFrame() {
+        double full = means[0];
+        double fullDetrended = detrended(0);
+        fullSquares[frameCount] = fullDetrended * fullDetrended;
+        for (int c = 1; c < means.length; c++) {
+            double noise = detrended(c) - fullDetrended;
+            sums[c] += noise;
+            sumsOfSquares[c] += noise * noise;
+            offsets[c] = frameCount == 0 ? full - means[c] : offsets[c] + OFFSET_SMOOTHING * (full - means[c] - offsets[c]);
+        }
+        if (++frameCount == frames) {
+            choose();
+        }
+        return full;
+    }
+
+    private double variance(int candidate) {
+        double mean = sums[candidate] / frameCount;
+        return Math.max(0, sumsOfSquares[candidate] / frameCount - mean * mean);
+    }
+
+    private void choose() {
+        double[] squares = fullSquares.clone();
+        Arrays.sort(squares);
+        double reference = squares[squares.length / 2];
+        chosen = 0;
+        for (int c = 1; c < sums.length; c++) {
+            if (samples[c] >= MIN_SAMPLES && samples[c] < samples[chosen]
+                    && variance(c) <= tolerance * reference) {
+                chosen = c;
+            }
+        }
+    }
+
+    /**
+     * @return the first column of the chosen region.
+     */
+    public int getLeft() {
+        return lefts[chosen];
+    }
+
+    /**
+     * @return the first row of the chosen region.
+     */
+    public int getTop() {
+        return tops[chosen];
+    }
+
+    /**
+     * @return the column after the last column of the chosen region.
+     */
+    public int getRight() {
+        return rights[chosen];
+    }
+
+    /**
+     * @return the row after the last row of the chosen region.
+     */
+    public int getBottom() {
+        return bottoms[chosen];
+    }
+
+    /**
+     * @return the chosen pixel stride.
+     */
+    public int getStride() {
+        return strides[chosen];
+    }
+
+    /**
+     * @return the mean red value of the full frame minus that of the chosen region, averaged
+     * over the last calibration frames; 0 if the full frame was chosen.
+     */
+    public double getOffset() {
+        return offsets[chosen];
+    }
+}
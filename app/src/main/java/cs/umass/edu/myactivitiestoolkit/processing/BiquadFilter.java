@@ -0,0 +1,457 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+/**
+ * <p>Butterworth IIR filter implemented as a cascade of second-order sections (biquads).
+ * Low-pass, high-pass and band-pass designs of any even order are supported at any
+ * sample rate and for any number of channels, e.g. the x, y and z axes of an
+ * accelerometer. Unlike {@link Filter}, the output is written into a caller-supplied
+ * array, so filtering a sample allocates nothing. Whole buffers, interleaved or planar,
+ * can be filtered in one call with {@link #filterInterleaved} and {@link #filterPlanar}.</p>
+ *
+ * <p>The filter is designed from the analog Butterworth prototype through the bilinear
+ * transform with pre-warped cut-off frequencies. Each section is evaluated in transposed
+ * direct form II, which keeps two state values per section and channel.</p>
+ *
+ * @see Filter
+ */
+public class BiquadFilter {
+
+    /** The supported filter responses. */
+    public enum Type {
+        LOW_PASS,
+        HIGH_PASS,
+        BAND_PASS
+    }
+
+    private final Type type;
+
+    /** The order of the overall filter. */
+    private final int order;
+
+    /** The cut-off frequency, or the lower band edge for a band-pass filter, in Hz. */
+    private final double lowCutoff;
+
+    /** The upper band edge of a band-pass filter in Hz, unused otherwise. */
+    private final double highCutoff;
+
+    private final int channels;
+
+    private final int sections;
+
+    private double sampleRate;
+
+    /** Section coefficients, normalised so that a0 = 1. */
+    private final double[] b0, b1, b2, a1, a2;
+
+    /** Transposed direct form II state, indexed by channel * sections + section. */
+    private final double[] state1, state2;
+
+    /**
+     * Creates a Butterworth low-pass filter.
+     * @param order the filter order, a positive even number.
+     * @param cutoff the -3 dB cut-off frequency in Hz.
+     * @param sampleRate the sampling rate in Hz.
+     * @param channels the number of independently filtered channels.
+     * @return the filter.
+     */
+    public static BiquadFilter lowPass(int order, double cutoff, double sampleRate, int channels) {
+        return new BiquadFilter(Type.LOW_PASS, order, cutoff, 0, sampleRate, channels);
+    }
+
+    /**
+     * Creates a Butterworth high-pass filter.
+     * @param order the filter order, a positive even number.
+     * @param cutoff the -3 dB cut-off frequency in Hz.
+     * @param sampleRate the sampling rate in Hz.
+     * @param channels the number of independently filtered channels.
+     * @return the filter.
+     */
+    public static BiquadFilter highPass(int order, double cutoff, double sampleRate, int channels) {
+        return new BiquadFilter(Type.HIGH_PASS, order, cutoff, 0, sampleRate, channels);
+    }
+
+    /**
+     * Creates a Butterworth band-pass filter.
+     * @param order the filter order, a positive even number. The low-pass prototype has half this order.
+     * @param lowCutoff the lower -3 dB band edge in Hz.
+     * @param highCutoff the upper -3 dB band edge in Hz.
+     * @param sampleRate the sampling rate in Hz.
+     * @param channels the number of independently filtered channels.
+     * @return the filter.
+     */
+    public static BiquadFilter bandPass(int order, double lowCutoff, double highCutoff, double sampleRate, int channels) {
+        return new BiquadFilter(Type.BAND_PASS, order, lowCutoff, highCutoff, sampleRate, channels);
+    }
+
+    private BiquadFilter(Type type, int order, double lowCutoff, double highCutoff, double sampleRate, int channels) {
+        if (order < 2 || (order & 1) != 0) {
+            throw new IllegalArgumentException("Filter order must be a positive even number");
+        }
+        if (channels < 1) {
+            throw new IllegalArgumentException("Filter must have at least one channel");
+        }
+        if (type == Type.BAND_PASS && !(lowCutoff > 0 && highCutoff > lowCutoff)) {
+            throw new IllegalArgumentException("Band-pass edges must satisfy 0 < low < high");
+        }
+        this.type = type;
+        this.order = order;
+        this.lowCutoff = lowCutoff;
+        this.highCutoff = highCutoff;
+        this.channels = channels;
+        this.sections = order / 2;
+
+        b0 = new double[sections];
+        b1 = new double[sections];
+        b2 = new double[sections];
+        a1 = new double[sections];
+        a2 = new double[sections];
+        state1 = new double[channels * sections];
+        state2 = new double[channels * sections];
+
+        design(sampleRate);
+    }
+
+    /**
+     * Computes the section coefficients for the given sample rate. The filter state is
+     * left untouched.
+     * @param sampleRate the sampling rate in Hz.
+     */
+    void design(double sampleRate) {
+        double nyquist = sampleRate / 2;
+        double upper = type == Type.BAND_PASS ? highCutoff : lowCutoff;
+        if (!(lowCutoff > 0 && upper < nyquist)) {
+            throw new IllegalArgumentException("Cut-off frequencies must lie strictly between 0 and " + nyquist + " Hz");
+        }
+        this.sampleRate = sampleRate;
+
+        double fs2 = 2 * sampleRate;
+        double warpedLow = fs2 * Math.tan(Math.PI * lowCutoff / sampleRate);
+
+        if (type == Type.BAND_PASS) {
+            double warpedHigh = fs2 * Math.tan(Math.PI * highCutoff / sampleRate);
+            designBandPass(warpedLow, warpedHigh, fs2);
+            return;
+        }
+
+        // one section per conjugate pair of prototype poles
+        for (int k = 0; k < sections; k++) {
+            double theta = Math.PI * (2 * k + order + 1) / (2 * order);
+            double pr = Math.cos(theta), pi = Math.sin(theta);
+
+            double sr, si;
+            if (type == Type.LOW_PASS) {
+                sr = warpedLow * pr;
+                si = warpedLow * pi;
+            } else {
+                // s = W / p, with |p| = 1
+                sr = warpedLow * pr;
+                si = -warpedLow * pi;
+            }
+            setPoles(k, bilinear(sr, si, fs2));
+
+            if (type == Type.LOW_PASS) {
+                setNumerator(k, 1, 2, 1);
+                normalize(k, 0);
+            } else {
+                setNumerator(k, 1, -2, 1);
+                normalize(k, Math.PI);
+            }
+        }
+    }
+
+    /**
+     * Maps each pole p of the order/2 low-pass prototype to the band-pass poles
+     * s = p B/2 +/- sqrt((p B/2)^2 - W0^2), with B = W2 - W1 and W0^2 = W1 W2.
+     */
+    private void designBandPass(double warpedLow, double warpedHigh, double fs2) {
+        int prototypeOrder = order / 2;
+        double halfBandwidth = (warpedHigh - warpedLow) / 2;
+        double centerSquared = warpedLow * warpedHigh;
+        double center = 2 * Math.atan(Math.sqrt(centerSquared) / fs2);
+
+        int section = 0;
+        for (int k = 0; k < (prototypeOrder + 1) / 2; k++) {
+            double theta = Math.PI * (2 * k + prototypeOrder + 1) / (2 * prototypeOrder);
+            double pr = Math.cos(theta) * halfBandwidth;
+            double pi = Math.sin(theta) * halfBandwidth;
+
+            // discriminant (p B/2)^2 - W0^2 and its principal square root
+            double dr = pr * pr - pi * pi - centerSquared;
+            double di = 2 * pr * pi;
+            double magnitude = Math.sqrt(Math.sqrt(dr * dr + di * di));
+            double angle = Math.atan2(di, dr) / 2;
+            double qr = magnitude * Math.cos(angle);
+            double qi = magnitude * Math.sin(angle);
+
+            if (Math.abs(pi) < 1e-12 * halfBandwidth) {
+                // real prototype pole: its two band-pass poles share one section
+                double[] z1 = bilinear(pr + qr, qi, fs2);
+                double[] z2 = bilinear(pr - qr, -qi, fs2);
+                a1[section] = -(z1[0] + z2[0]);
+                a2[section] = z1[0] * z2[0] - z1[1] * z2[1];
+                setNumerator(section, 1, 0, -1);
+                normalize(section, center);
+                section++;
+            } else {
+                setPoles(section, bilinear(pr + qr, pi + qi, fs2));
+                setNumerator(section, 1, 0, -1);
+                normalize(section, center);
+                section++;
+
+                setPoles(section, bilinear(pr - qr, pi - qi, fs2));
+                setNumerator(section, 1, 0, -1);
+                normalize(section, center);
+                section++;
+            }
+        }
+    }
+
+    /**
+     * Maps an analog pole to the z-plane, z = (2 fs + s) / (2 fs - s).
+     */
+    private static double[] bilinear(double sr, double si, double fs2) {
+        double nr = fs2 + sr, ni = si;
+        double dr = fs2 - sr, di = -si;
+        double denominator = dr * dr + di * di;
+        return new double[]{(nr * dr + ni * di) / denominator, (ni * dr - nr * di) / denominator};
+    }
+
+    /**
+     * Sets the denominator of a section from one pole z and its conjugate.
+     */
+    private void setPoles(int section, double[] z) {
+        a1[section] = -2 * z[0];
+        a2[section] = z[0] * z[0] + z[1] * z[1];
+    }
+
+    private void setNumerator(int section, double c0, double c1, double c2) {
+        b0[section] = c0;
+        b1[section] = c1;
+        b2[section] = c2;
+    }
+
+    /**
+     * Scales the numerator of a section to unit gain at the normalised angular frequency w.
+     */
+    private void normalize(int section, double w) {
+        double c1 = Math.cos(w), s1 = -Math.sin(w);
+        double c2 = Math.cos(2 * w), s2 = -Math.sin(2 * w);
+        double nr = b0[section] + b1[section] * c1 + b2[section] * c2;
+        double ni = b1[section] * s1 + b2[section] * s2;
+        double dr = 1 + a1[section] * c1 + a2[section] * c2;
+        double di = a1[section] * s1 + a2[section] * s2;
+        double gain = Math.sqrt((dr * dr + di * di) / (nr * nr + ni * ni));
+        b0[section] *= gain;
+        b1[section] *= gain;
+        b2[section] *= gain;
+    }
+
+    /**
+     * Filters one multi-channel sample, e.g. an accelerometer reading.
+     * @param input the input value of each channel.
+     * @param output receives the filtered value of each channel. It may be the same length as
+     *               input or longer; only the first {@link #getChannels()} entries are written.
+     */
+    public void filter(float[] input, double[] output) {
+        for (int c = 0; c < channels; c++) {
+            output[c] = filter(c, input[c]);
+        }
+    }
+
+    /**
+     * Filters one multi-channel sample.
+     * @param input the input value of each channel.
+     * @param output receives the filtered value of each channel. May be the same array as input.
+     */
+    public void filter(double[] input, double[] output) {
+        for (int c = 0; c < channels; c++) {
+            output[c] = filter(c, input[c]);
+        }
+    }
+
+    /**
+     * Filters one sample of a single channel.
+     * @param channel the channel index.
+     * @param sample the input sample.
+     * @return the filtered sample.
+     */
+    public double filter(int channel, double sample) {
+        int base = channel * sections;
+        double x = sample;
+        for (int s = 0; s < sections; s++) {
+            int i = base + s;
+            double y = b0[s] * x + state1[i];
+            state1[i] = b1[s] * x - a1[s] * y + state2[i];
+            state2[i] = b2[s] * x - a2[s] * y;
+            x = y;
+        }
+        return x;
+    }
+
+    /**
+     * Filters a block of interleaved multi-channel samples, e.g. x0 y0 z0 x1 y1 z1 ...
+     * @param input the interleaved input samples.
+     * @param inputOffset the index of the first input sample.
+     * @param output receives the interleaved filtered samples.
+     * @param outputOffset the index of the first output sample.
+     * @param frames the number of multi-channel frames to filter.
+     */
+    public void filterInterleaved(float[] input, int inputOffset, double[] output, int outputOffset, int frames) {
+        int end = outputOffset + frames * channels;
+        for (int i = inputOffset, o = outputOffset; o < end; i++, o++) {
+            output[o] = input[i];
+        }
+        filterInterleaved(output, outputOffset, output, outputOffset, frames);
+    }
+
+    /**
+     * Filters a block of interleaved multi-channel samples. The output may be the input array,
+     * in which case the samples are filtered in place.
+     * @param input the interleaved input samples.
+     * @param inputOffset the index of the first input sample.
+     * @param output receives the interleaved filtered samples.
+     * @param outputOffset the index of the first output sample.
+     * @param frames the number of multi-channel frames to filter.
+     */
+    public void filterInterleaved(double[] input, int inputOffset, double[] output, int outputOffset, int frames) {
+        for (int c = 0; c < channels; c++) {
+            filterStrided(c, input, inputOffset + c, output, outputOffset + c, channels, frames);
+        }
+    }
+
+    /**
+     * Filters a block of planar samples, one array per channel.
+     * @param input the input samples of each channel.
+     * @param output receives the filtered samples of each channel.
+     * @param length the number of samples to filter in each channel.
+     */
+    public void filterPlanar(float[][] input, double[][] output, int length) {
+        for (int c = 0; c < channels; c++) {
+            float[] in = input[c];
+            double[] out = output[c];
+            for (int i = 0; i < length; i++) {
+                out[i] = in[i];
+            }
+            filterStrided(c, out, 0, out, 0, 1, length);
+        }
+    }
+
+    /**
+     * Filters a block of planar samples, one array per channel. The output arrays may be the
+     * input arrays, in which case the samples are filtered in place.
+     * @param input the input samples of each channel.
+     * @param output receives the filtered samples of each channel.
+     * @param length the number of samples to filter in each channel.
+     */
+    public void filterPlanar(double[][] input, double[][] output, int length) {
+        for (int c = 0; c < channels; c++) {
+            filterStrided(c, input[c], 0, output[c], 0, 1, length);
+        }
+    }
+
+    /**
+     * Runs one channel through the cascade one section at a time. Each pass keeps the
+     * section's coefficients and state in locals and walks the whole block, which gives
+     * the JIT a simple loop to unroll; sections after the first work in place on output.
+     */
+    private void filterStrided(int channel, double[] input, int inputOffset, double[] output, int outputOffset,
+                               int stride, int length) {
+        if (length <= 0) {
+            return;
+        }
+        int base = channel * sections;
+        double[] in = input;
+        int inOff = inputOffset;
+        int end = outputOffset + length * stride;
+        for (int s = 0; s < sections; s++) {
+            double cb0 = b0[s], cb1 = b1[s], cb2 = b2[s], ca1 = a1[s], ca2 = a2[s];
+            double z1 = state1[base + s], z2 = state2[base + s];
+            for (int i = inOff, o = outputOffset; o < end; i += stride, o += stride) {
+                double x = in[i];
+                double y = cb0 * x + z1;
+                z1 = cb1 * x - ca1 * y + z2;
+                z2 = cb2 * x - ca2 * y;
+                output[o] = y;
+            }
+            state1[base + s] = z1;
+            state2[base + s] = z2;
+            in = output;
+            inOff = outputOffset;
+        }
+    }
+
+    /**
+     * Sets the state of a channel as if the input had always been the given constant,
+     * which avoids the start-up transient when filtering begins mid-signal.
+     * @param channel the channel index.
+     * @param value the constant input value.
+     */
+    public void setSteadyState(int channel, double value) {
+        int base = channel * sections;
+        double x = value;
+        for (int s = 0; s < sections; s++) {
+            double y = x * (b0[s] + b1[s] + b2[s]) / (1 + a1[s] + a2[s]);
+            state2[base + s] = b2[s] * x - a2[s] * y;
+            state1[base + s] = b1[s] * x - a1[s] * y + state2[base + s];
+            x = y;
+        }
+    }
+
+    /**
+     * Returns the number of samples after which the impulse response has decayed below the
+     * given fraction of its initial magnitude, estimated from the slowest pole.
+     * @param tolerance the relative magnitude, e.g. 1e-6.
+     * @return the settling time in samples.
+     */
+    public int getSettlingSamples(double tolerance) {
+        double radius = 0;
+        for (int s = 0; s < sections; s++) {
+            double discriminant = a1[s] * a1[s] - 4 * a2[s];
+            if (discriminant < 0) {
+                radius = Math.max(radius, Math.sqrt(a2[s]));
+            } else {
+                double root = Math.sqrt(discriminant);
+                radius = Math.max(radius, Math.max(Math.abs(-a1[s] + root), Math.abs(-a1[s] - root)) / 2);
+            }
+        }
+        if (radius <= 0) {
+            return 1;
+        }
+        return (int) Math.ceil(Math.log(tolerance) / Math.log(radius));
+    }
+
+    /**
+     * Creates a filter with the same design and sample rate but its own state and channel count.
+     * @param channels the number of channels of the new filter.
+     * @return a new filter in its initial state.
+     */
+    public BiquadFilter copy(int channels) {
+        return new BiquadFilter(type, order, lowCutoff, highCutoff, sampleRate, channels);
+    }
+
+    /**
+     * Clears the state of every channel.
+     */
+    public void reset() {
+        for (int i = 0; i < state1.length; i++) {
+            state1[i] = 0;
+            state2[i] = 0;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+}
@@ -1,36 +1,448 @@
 package cs.umass.edu.myactivitiestoolkit.processing;
 
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fast Fourier transform of arbitrary length. Powers of two use the in-place radix-2
+ * transform, lengths of the form 2^a 3^b 5^c use a mixed-radix decimation-in-time
+ * transform, and any other length falls back to Bluestein's chirp-z algorithm, which
+ * evaluates the DFT as a convolution through a power-of-two transform. All tables are
+ * computed once in the constructor, so frames can be transformed at their natural
+ * length instead of being zero-padded to the next power of two.
+ * <br><br>
+ * Instances are immutable plans: twiddle, bit-reversal and chirp tables are fixed at
+ * construction and the transforms only write to per-thread scratch buffers. Use
+ * {@link #getInstance(int)} to share one plan per length across the application.
+ */
 public class FFT
 {
-        int n, m;
+        // Plans shared across threads, keyed by transform length.
+        private static final ConcurrentHashMap<Integer, FFT> PLANS = new ConcurrentHashMap<>();
+
+        final int n, m;
 
         // Lookup tables.  Only need to recompute when size of FFT changes.
-        double[] cos;
-        double[] sin;
+        // Radix-2 only needs the first n/2 twiddles, the other engines use all n.
+        final double[] cos;
+        final double[] sin;
 
-        public FFT(int n)
+        // Bit-reversal permutation of the radix-2 transform, null for the other engines.
+        final int[] bitrev;
+
+        // Constant butterfly coefficients for the radix-3 and radix-5 steps.
+        private static final double SIN_60 = Math.sqrt(3)/2;
+        private static final double COS_72 = Math.cos(2*Math.PI/5);
+        private static final double COS_144 = Math.cos(4*Math.PI/5);
+        private static final double SIN_72 = Math.sin(2*Math.PI/5);
+        private static final double SIN_144 = Math.sin(4*Math.PI/5);
+
+        // Radix sequence of the mixed-radix transform, null if it is not used.
+        final int[] factors;
+
+        // Bluestein: chirp, transformed convolution kernel and power-of-two transform.
+        final FFT conv;
+        final double[] chirpRe;
+        final double[] chirpIm;
+        final double[] kernelRe;
+        final double[] kernelIm;
+
+        // Half-length plan used by realForward(), looked up from the cache on first use.
+        private volatile FFT half;
+
+        /**
+         * Working buffers of one thread. The tables above are never written after
+         * construction, so all mutable state of a transform lives here.
+         */
+        private static class Scratch
         {
-                this.n = n;
-                this.m = (int)(Math.log(n) / Math.log(2));
+                double[] workRe;
+                double[] workIm;
+                double[] halfRe;
+                double[] halfIm;
+                final double[] butterflyRe = new double[5];
+                final double[] butterflyIm = new double[5];
+        }
+
+        private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+        {
+                @Override
+                protected Scratch initialValue()
+                {
+                        return new Scratch();
+                }
+        };
 
-                // Make sure n is a power of 2
-                if (n != (1<<m))
+        /**
+         * Returns the shared plan for the given length, creating it on first request.
+         * Plans are immutable and each thread transforms with its own scratch buffers,
+         * so the same instance may be used concurrently from any number of threads.
+         * @param n the transform length.
+         * @return the plan for length n.
+         */
+        public static FFT getInstance(int n)
+        {
+                FFT plan = PLANS.get(n);
+                if (plan == null)
                 {
-                        throw new RuntimeException("FFT length must be power of 2");
+                        plan = new FFT(n);
+                        FFT existing = PLANS.putIfAbsent(n, plan);
+                        if (existing != null)
+                        {
+                                plan = existing;
+                        }
                 }
+                return plan;
+        }
+
+        public FFT(int n)
+        {
+                if (n < 1)
+                {
+                        throw new RuntimeException("FFT length must be positive");
+                }
+
+                this.n = n;
+                this.m = 31 - Integer.numberOfLeadingZeros(n);
+
+                boolean powerOfTwo = n == (1<<m);
+                int tableSize = powerOfTwo ? n/2 : n;
 
                 // precompute tables
-                cos = new double[n/2];
-                sin = new double[n/2];
+                cos = new double[tableSize];
+                sin = new double[tableSize];
 
-                for(int i=0; i<n/2; i++)
+                for(int i=0; i<tableSize; i++)
                 {
                         cos[i] = Math.cos(-2*Math.PI*i/n);
                         sin[i] = Math.sin(-2*Math.PI*i/n);
                 }
+
+                bitrev = powerOfTwo ? bitReversal(n) : null;
+                factors = powerOfTwo ? null : factorize(n);
+                if (!powerOfTwo && factors == null)
+                {
+                        int size = Integer.highestOneBit(2*n - 1);
+                        if (size < 2*n - 1)
+                        {
+                                size <<= 1;
+                        }
+                        conv = getInstance(size);
+                        chirpRe = new double[n];
+                        chirpIm = new double[n];
+                        kernelRe = new double[size];
+                        kernelIm = new double[size];
+                        initBluestein();
+                }
+                else
+                {
+                        conv = null;
+                        chirpRe = null;
+                        chirpIm = null;
+                        kernelRe = null;
+                        kernelIm = null;
+                }
+        }
+
+        /**
+         * @return the transform length.
+         */
+        public int size()
+        {
+                return n;
+        }
+
+        /**
+         * Computes the bit-reversed index of every position of a power-of-two transform.
+         */
+        private static int[] bitReversal(int n)
+        {
+                int[] rev = new int[n];
+                int i,j,n1;
+
+                j = 0;
+                for (i=1; i < n - 1; i++)
+                {
+                        n1 = n/2;
+                        while ( j >= n1 )
+                        {
+                                j = j - n1;
+                                n1 = n1/2;
+                        }
+                        j = j + n1;
+                        rev[i] = j;
+                }
+                if (n > 1)
+                {
+                        rev[n-1] = n-1;
+                }
+                return rev;
+        }
+
+        /**
+         * Splits n into radices 2, 3, 4 and 5, pairing factors of two into radix-4 steps.
+         * @return the radix sequence, or null if n has any other prime factor.
+         */
+        private static int[] factorize(int n)
+        {
+                int[] radices = new int[32];
+                int count = 0;
+                for (int p : new int[]{5, 3, 4, 2})
+                {
+                        while (n % p == 0)
+                        {
+                                radices[count++] = p;
+                                n /= p;
+                        }
+                }
+                if (n != 1)
+                {
+                        return null;
+                }
+                int[] result = new int[count];
+                System.arraycopy(radices, 0, result, 0, count);
+                return result;
+        }
+
+        /**
+         * Precomputes the chirp w[k] = exp(-i pi k^2 / n) and the transform of the
+         * conjugate chirp, zero-padded to a power of two of at least 2n - 1 points.
+         */
+        private void initBluestein()
+        {
+                int size = kernelRe.length;
+
+                for (int k=0; k<n; k++)
+                {
+                        // k^2 mod 2n keeps the angle small and exact for large k
+                        long k2 = ((long) k * k) % (2L * n);
+                        double angle = Math.PI * k2 / n;
+                        chirpRe[k] = Math.cos(angle);
+                        chirpIm[k] = -Math.sin(angle);
+
+                        kernelRe[k] = chirpRe[k];
+                        kernelIm[k] = -chirpIm[k];
+                        if (k > 0)
+                        {
+                                kernelRe[size-k] = kernelRe[k];
+                                kernelIm[size-k] = kernelIm[k];
+                        }
+                }
+                conv.fft(kernelRe, kernelIm);
+        }
+
+        /**
+         * In-place forward transform of a complex input of length n.
+         * @param re array of length n with the real part of the data.
+         * @param im array of length n with the imaginary part of the data.
+         */
+        public void fft(double[] re, double[] im)
+        {
+                if (factors != null)
+                {
+                        mixedRadix(re, im);
+                }
+                else if (conv != null)
+                {
+                        bluestein(re, im);
+                }
+                else
+                {
+                        radix2(re, im);
+                }
+        }
+
+        /**
+         * Mixed-radix transform. The input is copied to scratch and the recursion writes
+         * the result back into the caller's arrays.
+         */
+        private void mixedRadix(double[] re, double[] im)
+        {
+                Scratch s = scratch.get();
+                if (s.workRe == null)
+                {
+                        s.workRe = new double[n];
+                        s.workIm = new double[n];
+                }
+                System.arraycopy(re, 0, s.workRe, 0, n);
+                System.arraycopy(im, 0, s.workIm, 0, n);
+                mixedRadix(s.workRe, s.workIm, 0, 1, re, im, 0, n, 0, s.butterflyRe, s.butterflyIm);
         }
 
+        /**
+         * Decimation-in-time step: transforms the len samples starting at inOff with the
+         * given stride into out[outOff .. outOff+len), splitting on factors[f]. The
+         * butterfly inputs are staged in the caller's scratch arrays yr and yi.
+         */
+        private void mixedRadix(double[] inRe, double[] inIm, int inOff, int stride,
+                                double[] outRe, double[] outIm, int outOff, int len, int f,
+                                double[] yr, double[] yi)
+        {
+                int j,k,a,idx,p,sub,tw;
+
+                p = factors[f];
+                sub = len/p;
+
+                // Transform the p decimated subsequences into consecutive blocks of out
+                for (j=0; j < p; j++)
+                {
+                        if (sub == 1)
+                        {
+                                outRe[outOff + j] = inRe[inOff + j*stride];
+                                outIm[outOff + j] = inIm[inOff + j*stride];
+                        }
+                        else
+                        {
+                                mixedRadix(inRe, inIm, inOff + j*stride, stride*p,
+                                        outRe, outIm, outOff + j*sub, sub, f+1, yr, yi);
+                        }
+                }
+
+                // Combine: X[k + q*sub] = sum_j W_len^(j*k) Y_j[k] W_p^(j*q)
+                tw = n/len;
+                for (k=0; k < sub; k++)
+                {
+                        yr[0] = outRe[outOff + k];
+                        yi[0] = outIm[outOff + k];
+                        for (j=1; j < p; j++)
+                        {
+                                idx = outOff + j*sub + k;
+                                a = j*k*tw;
+                                yr[j] = outRe[idx]*cos[a] - outIm[idx]*sin[a];
+                                yi[j] = outRe[idx]*sin[a] + outIm[idx]*cos[a];
+                        }
 
+                        idx = outOff + k;
+                        switch (p)
+                        {
+                                case 2:
+                                        butterfly2(yr, yi, outRe, outIm, idx, sub);
+                                        break;
+                                case 3:
+                                        butterfly3(yr, yi, outRe, outIm, idx, sub);
+                                        break;
+                                case 4:
+                                        butterfly4(yr, yi, outRe, outIm, idx, sub);
+                                        break;
+                                default:
+                                        butterfly5(yr, yi, outRe, outIm, idx, sub);
+                                        break;
+                        }
+                }
+        }
+
+        private static void butterfly2(double[] yr, double[] yi, double[] re, double[] im, int idx, int sub)
+        {
+                re[idx] = yr[0] + yr[1];
+                im[idx] = yi[0] + yi[1];
+                re[idx + sub] = yr[0] - yr[1];
+                im[idx + sub] = yi[0] - yi[1];
+        }
+
+        private static void butterfly3(double[] yr, double[] yi, double[] re, double[] im, int idx, int sub)
+        {
+                double sr = yr[1] + yr[2], si = yi[1] + yi[2];
+                double dr = SIN_60*(yr[1] - yr[2]), di = SIN_60*(yi[1] - yi[2]);
+                double mr = yr[0] - 0.5*sr, mi = yi[0] - 0.5*si;
+
+                re[idx] = yr[0] + sr;
+                im[idx] = yi[0] + si;
+                re[idx + sub] = mr + di;
+                im[idx + sub] = mi - dr;
+                re[idx + 2*sub] = mr - di;
+                im[idx + 2*sub] = mi + dr;
+        }
+
+        private static void butterfly4(double[] yr, double[] yi, double[] re, double[] im, int idx, int sub)
+        {
+                double ar = yr[0] + yr[2], ai = yi[0] + yi[2];
+                double br = yr[0] - yr[2], bi = yi[0] - yi[2];
+                double cr = yr[1] + yr[3], ci = yi[1] + yi[3];
+                double dr = yr[1] - yr[3], di = yi[1] - yi[3];
+
+                re[idx] = ar + cr;
+                im[idx] = ai + ci;
+                re[idx + sub] = br + di;
+                im[idx + sub] = bi - dr;
+                re[idx + 2*sub] = ar - cr;
+                im[idx + 2*sub] = ai - ci;
+                re[idx + 3*sub] = br - di;
+                im[idx + 3*sub] = bi + dr;
+        }
+
+        private static void butterfly5(double[] yr, double[] yi, double[] re, double[] im, int idx, int sub)
+        {
+                double a1r = yr[1] + yr[4], a1i = yi[1] + yi[4];
+                double b1r = yr[1] - yr[4], b1i = yi[1] - yi[4];
+                double a2r = yr[2] + yr[3], a2i = yi[2] + yi[3];
+                double b2r = yr[2] - yr[3], b2i = yi[2] - yi[3];
+
+                double p1r = yr[0] + COS_72*a1r + COS_144*a2r, p1i = yi[0] + COS_72*a1i + COS_144*a2i;
+                double p2r = yr[0] + COS_144*a1r + COS_72*a2r, p2i = yi[0] + COS_144*a1i + COS_72*a2i;
+                double q1r = SIN_72*b1r + SIN_144*b2r, q1i = SIN_72*b1i + SIN_144*b2i;
+                double q2r = SIN_144*b1r - SIN_72*b2r, q2i = SIN_144*b1i - SIN_72*b2i;
+
+                re[idx] = yr[0] + a1r + a2r;
+                im[idx] = yi[0] + a1i + a2i;
+                re[idx + sub] = p1r + q1i;
+                im[idx + sub] = p1i - q1r;
+                re[idx + 2*sub] = p2r + q2i;
+                im[idx + 2*sub] = p2i - q2r;
+                re[idx + 3*sub] = p2r - q2i;
+                im[idx + 3*sub] = p2i + q2r;
+                re[idx + 4*sub] = p1r - q1i;
+                im[idx + 4*sub] = p1i + q1r;
+        }
+
+        /**
+         * Bluestein transform: X[k] = w[k] * ((x w) conv conj(w))[k], with the
+         * convolution evaluated by the power-of-two transform.
+         */
+        private void bluestein(double[] re, double[] im)
+        {
+                int size = kernelRe.length;
+                int k;
+                double t,cr,ci;
+
+                Scratch s = scratch.get();
+                if (s.workRe == null)
+                {
+                        s.workRe = new double[size];
+                        s.workIm = new double[size];
+                }
+                double[] convRe = s.workRe;
+                double[] convIm = s.workIm;
+
+                for (k=0; k < n; k++)
+                {
+                        convRe[k] = re[k]*chirpRe[k] - im[k]*chirpIm[k];
+                        convIm[k] = re[k]*chirpIm[k] + im[k]*chirpRe[k];
+                }
+                for (k=n; k < size; k++)
+                {
+                        convRe[k] = 0;
+                        convIm[k] = 0;
+                }
+
+                conv.fft(convRe, convIm);
+
+                // Pointwise product, conjugated so that a forward transform inverts it
+                for (k=0; k < size; k++)
+                {
+                        t = convRe[k]*kernelRe[k] - convIm[k]*kernelIm[k];
+                        convIm[k] = -(convRe[k]*kernelIm[k] + convIm[k]*kernelRe[k]);
+                        convRe[k] = t;
+                }
+
+                conv.fft(convRe, convIm);
+
+                for (k=0; k < n; k++)
+                {
+                        cr = convRe[k]/size;
+                        ci = -convIm[k]/size;
+                        re[k] = cr*chirpRe[k] - ci*chirpIm[k];
+                        im[k] = cr*chirpIm[k] + ci*chirpRe[k];
+                }
+        }
 
         /***************************************************************
          * fft.c
@@ -51,24 +463,15 @@ public class FFT
          *   Permission to copy and use this program is granted 
          *   as long as this header is included. 
          ****************************************************************/
-        public void fft(double[] re, double[] im)
+        private void radix2(double[] re, double[] im)
         {
                 int i,j,k,n1,n2,a;
                 double c,s,t1,t2;
 
                 // Bit-reverse
-                j = 0;
-                n2 = n/2;
                 for (i=1; i < n - 1; i++)
                 {
-                        n1 = n2;
-                        while ( j >= n1 )
-                        {
-                                j = j - n1;
-                                n1 = n1/2;
-                        }
-                        j = j + n1;
-
+                        j = bitrev[i];
                         if (i < j)
                         {
                                 t1 = re[i];
@@ -108,4 +511,86 @@ public class FFT
                 }
         }                          
 
+
+        /**
+         * Real-input forward transform. The n real samples are packed into an n/2-point
+         * complex sequence (even samples as the real part, odd samples as the imaginary
+         * part), transformed with a half-length complex FFT and separated with a final
+         * twiddle pass. This does roughly half the work of {@link #fft(double[], double[])}
+         * on a zero imaginary array and needs no imaginary input buffer.
+         * <br><br>
+         * The result overwrites x with the packed half-spectrum:
+         * <pre>
+         *   x[0]      = Re X[0]      (DC, purely real)
+         *   x[1]      = Re X[n/2]    (Nyquist, purely real)
+         *   x[2k]     = Re X[k]      for 0 &lt; k &lt; n/2
+         *   x[2k+1]   = Im X[k]      for 0 &lt; k &lt; n/2
+         * </pre>
+         * The remaining bins follow from conjugate symmetry, X[n-k] = conj(X[k]).
+         * The length n must be even.
+         *
+         * @param x array of length n with the real input, overwritten with the packed spectrum.
+         */
+        public void realForward(double[] x)
+        {
+                int nh = n/2;
+                int k;
+                double ar,ai,br,bi,er,ei,or,oi,c,s;
+
+                if ((n & 1) != 0)
+                {
+                        throw new RuntimeException("Real FFT length must be even");
+                }
+
+                FFT half = this.half;
+                if (half == null)
+                {
+                        half = getInstance(nh);
+                        this.half = half;
+                }
+
+                Scratch scr = scratch.get();
+                if (scr.halfRe == null)
+                {
+                        scr.halfRe = new double[nh];
+                        scr.halfIm = new double[nh];
+                }
+                double[] halfRe = scr.halfRe;
+                double[] halfIm = scr.halfIm;
+
+                // Pack even/odd samples into one complex sequence of half length
+                for (k=0; k < nh; k++)
+                {
+                        halfRe[k] = x[2*k];
+                        halfIm[k] = x[2*k+1];
+                }
+
+                half.fft(halfRe, halfIm);
+
+                // DC and Nyquist bins are purely real
+                x[0] = halfRe[0] + halfIm[0];
+                x[1] = halfRe[0] - halfIm[0];
+
+                // Split Z[k] into the spectra of the even and odd samples and recombine:
+                // X[k] = E[k] + W^k O[k], with E = (Z[k] + conj Z[nh-k]) / 2
+                // and O = -i (Z[k] - conj Z[nh-k]) / 2
+                for (k=1; k < nh; k++)
+                {
+                        ar = halfRe[k];
+                        ai = halfIm[k];
+                        br = halfRe[nh-k];
+                        bi = halfIm[nh-k];
+
+                        er = 0.5*(ar + br);
+                        ei = 0.5*(ai - bi);
+                        or = 0.5*(ai + bi);
+                        oi = -0.5*(ar - br);
+
+                        c = cos[k];
+                        s = sin[k];
+                        x[2*k] = er + c*or - s*oi;
+                        x[2*k+1] = ei + s*or + c*oi;
+                }
+        }
+
 }
\ No newline at end of file
@@ -16,7 +16,18 @@ public class Filter {
 		SMOOTHING
 	};
 	
-	private int SAMPLE_RATE = 30;
+	private double SAMPLE_RATE = 30;
+	
+	/** Tracks the actual sampling rate when timestamps are supplied, null otherwise. */
+	private SampleRateEstimator rateEstimator = null;
+	
+	/** The relative drift of the estimated rate that triggers a coefficient redesign. */
+	private static final double RATE_TOLERANCE = 0.05;
+	
+	/** The weight of each new sampling interval in the rate estimate. */
+	private static final double RATE_SMOOTHING = 0.02;
+	
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
 	
 	private FilterType FILTER_TYPE = FilterType.SMOOTHING;
 	
@@ -57,6 +68,24 @@ public class Filter {
 		getLPCoefficientsButterworth2Pole(SAMPLE_RATE, CUTOFF_FREQUENCY);
 	}
 	
+	/**
+	 * Use this constructor to use a Butterworth filter whose coefficients follow the actual
+	 * sampling rate. Pass sensor timestamps to {@link #getFilteredValues(long, float[], double[])}
+	 * and the coefficients are redesigned whenever the observed rate drifts from the rate they
+	 * were designed for by more than 5%.
+	 * @param cutoffFrequency the frequency threshold for smoothing.
+	 * @param sampleRate the nominal sampling rate in Hz, used until the rate has been observed.
+	 */
+	public Filter(double cutoffFrequency, double sampleRate) {
+		FILTER_TYPE = FilterType.BUTTERWORTH;
+		CUTOFF_FREQUENCY = cutoffFrequency;
+		SAMPLE_RATE = sampleRate;
+		xv = new double[NUM_ACCEL_FIELDS][3];
+		yv = new double[NUM_ACCEL_FIELDS][3];
+		rateEstimator = new SampleRateEstimator(NANOSECONDS_PER_SECOND, RATE_SMOOTHING);
+		getLPCoefficientsButterworth2Pole(SAMPLE_RATE, CUTOFF_FREQUENCY);
+	}
+	
 	
 	/**
 	 * Filters the current accelerometer reading.
@@ -65,23 +94,114 @@ public class Filter {
 	 */
 	public double[] getFilteredValues(float... values) {
 		double result[] = new double[NUM_ACCEL_FIELDS];
+		getFilteredValues(values, result);
+		return result;
+	}
+	
+	/**
+	 * Filters the current accelerometer reading into a caller-supplied array. Unlike
+	 * {@link #getFilteredValues(float...)}, this allocates neither the varargs nor the result array.
+	 * @param values the accelerometer values along the x, y and z axes
+	 * @param result receives the filtered accelerometer values.
+	 */
+	public void getFilteredValues(float[] values, double[] result) {
 		if(FILTER_TYPE == FilterType.BUTTERWORTH) {
 			for (int i = 0; i < values.length; i++){
 				result[i] = getButterworthFilteredValue(values[i], i);
 			}
-//			result[X_INDEX] = getButterworthFilteredValue(values[0], X_INDEX);
-//			result[Y_INDEX] = getButterworthFilteredValue(values[1], Y_INDEX);
-//			result[Z_INDEX] = getButterworthFilteredValue(values[2], Z_INDEX);
 		}
 		else if(FILTER_TYPE == FilterType.SMOOTHING) {
 			for (int i = 0; i < values.length; i++){
 				result[i] = getSmoothedValue(values[i], i);
 			}
-//			result[X_INDEX] = getSmoothedValue(values[0], X_INDEX);
-//			result[Y_INDEX] = getSmoothedValue(values[1], Y_INDEX);
-//			result[Z_INDEX] = getSmoothedValue(values[2], Z_INDEX);
 		}
-		return result;
+	}
+	
+	/**
+	 * Filters the current reading, first updating the sampling rate estimate from its timestamp.
+	 * The filter history is kept when the coefficients are redesigned, so the output stays
+	 * continuous across the switch.
+	 * @param timestamp the sensor timestamp in nanoseconds, e.g. {@link android.hardware.SensorEvent#timestamp}
+	 * @param values the accelerometer values along the x, y and z axes
+	 * @param result receives the filtered accelerometer values.
+	 */
+	public void getFilteredValues(long timestamp, float[] values, double[] result) {
+		if(rateEstimator != null) {
+			rateEstimator.update(timestamp);
+			if(rateEstimator.isReady()) {
+				double rate = rateEstimator.getSampleRate();
+				// the design warps the cutoff with tan(2 pi fc / fs), which is only valid below a quarter of the rate
+				if(Math.abs(rate - SAMPLE_RATE) > RATE_TOLERANCE * SAMPLE_RATE && 4 * CUTOFF_FREQUENCY < rate) {
+					getLPCoefficientsButterworth2Pole(rate, CUTOFF_FREQUENCY);
+					if(isStable()) {
+						SAMPLE_RATE = rate;
+					} else {
+						getLPCoefficientsButterworth2Pole(SAMPLE_RATE, CUTOFF_FREQUENCY);
+					}
+				}
+			}
+		}
+		getFilteredValues(values, result);
+	}
+	
+	/**
+	 * @return the sampling rate in Hz the coefficients are currently designed for.
+	 */
+	public double getSampleRate() {
+		return SAMPLE_RATE;
+	}
+	
+	/**
+	 * Filters a block of interleaved readings, i.e. x0 y0 z0 x1 y1 z1 ... The filter keeps
+	 * state for exactly 3 axes, so every reading must have 3 values.
+	 * @param input the interleaved accelerometer values
+	 * @param output receives the interleaved filtered values
+	 * @param frames the number of readings in the block
+	 */
+	public void filterInterleaved(float[] input, double[] output, int frames) {
+		int n = frames * NUM_ACCEL_FIELDS;
+		if(FILTER_TYPE == FilterType.BUTTERWORTH) {
+			for (int i = 0; i < n; i += NUM_ACCEL_FIELDS){
+				output[i] = getButterworthFilteredValue(input[i], 0);
+				output[i+1] = getButterworthFilteredValue(input[i+1], 1);
+				output[i+2] = getButterworthFilteredValue(input[i+2], 2);
+			}
+		}
+		else if(FILTER_TYPE == FilterType.SMOOTHING) {
+			for (int i = 0; i < n; i += NUM_ACCEL_FIELDS){
+				output[i] = getSmoothedValue(input[i], 0);
+				output[i+1] = getSmoothedValue(input[i+1], 1);
+				output[i+2] = getSmoothedValue(input[i+2], 2);
+			}
+		}
+	}
+	
+	/**
+	 * Filters a block of planar readings, one array per axis. The filter keeps state for at
+	 * most 3 axes, which are filtered in the order given.
+	 * @param input the accelerometer values, indexed by axis and then by sample
+	 * @param output receives the filtered values, indexed by axis and then by sample
+	 * @param length the number of samples per axis
+	 * @throws IllegalArgumentException if there are more than 3 axes.
+	 */
+	public void filterPlanar(float[][] input, double[][] output, int length) {
+		if(input.length > NUM_ACCEL_FIELDS) {
+			throw new IllegalArgumentException("At most " + NUM_ACCEL_FIELDS + " axes can be filtered, got " + input.length);
+		}
+		for (int axis = 0; axis < input.length; axis++) {
+			float[] in = input[axis];
+			double[] out = output[axis];
+			if(FILTER_TYPE == FilterType.BUTTERWORTH) {
+				for (int i = 0; i < length; i++){
+					out[i] = getButterworthFilteredValue(in[i], axis);
+				}
+			}
+			else if(FILTER_TYPE == FilterType.SMOOTHING) {
+				for (int i = 0; i < length; i++){
+					out[i] = getSmoothedValue(in[i], axis);
+				}
+			}
+		}
 	}
 	
 	/**
@@ -96,8 +216,8 @@ public class Filter {
 		yv[filterIndex][2] = yv[filterIndex][1]; yv[filterIndex][1] = yv[filterIndex][0];
 
 		yv[filterIndex][0] =   (ax[0] * xv[filterIndex][0] + ax[1] * xv[filterIndex][1] + ax[2] * xv[filterIndex][2]
-				- by[1] * yv[filterIndex][0]
-						- by[2] * yv[filterIndex][1]);
+				- by[1] * yv[filterIndex][1]
+						- by[2] * yv[filterIndex][2]);
 
 		return yv[filterIndex][0];
 	}
@@ -119,12 +239,22 @@ public class Filter {
 		}
 	}
 	
+	/**
+	 * @return true if both poles of the current coefficients lie inside the unit circle,
+	 * i.e. the output cannot diverge.
+	 */
+	private boolean isStable()
+	{
+		// the stability triangle of 1 + by[1] z^-1 + by[2] z^-2
+		return Math.abs(by[2]) < 1 && Math.abs(by[1]) < 1 + by[2];
+	}
+	
 	/**
 	 * Get Butterworth 2 Pole LPC Coefficients
 	 * @param SAMPLE_RATE
 	 * @param cutoff
 	 */
-	private void getLPCoefficientsButterworth2Pole(int SAMPLE_RATE, double cutoff)
+	private void getLPCoefficientsButterworth2Pole(double SAMPLE_RATE, double cutoff)
 	{
 		double PI = 3.1415926535897932385;
 		double sqrt2 = 1.4142135623730950488;
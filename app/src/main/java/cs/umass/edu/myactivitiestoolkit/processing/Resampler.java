@@ -0,0 +1,315 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+/**
+ * <p>Streaming resampler from irregularly timestamped samples to a uniform output rate.
+ * Sensor events, camera frames and Band readings arrive with jitter and dropouts, while
+ * the {@link FFT}, {@link BiquadFilter} and feature extraction all assume a fixed rate.
+ * Samples are pushed one at a time and each output sample is passed to the
+ * {@link OutputListener} as soon as the input needed to compute it has arrived, so
+ * downstream processing can run continuously instead of re-interpolating whole windows.</p>
+ *
+ * <p>Each output time is first mapped to a fractional input index by interpolating between
+ * the two input timestamps that bracket it, which absorbs the timing jitter. The value at
+ * that index is then computed either linearly from the two neighbouring samples, or with a
+ * windowed-sinc kernel looked up from a polyphase table, which keeps the passband flat and,
+ * when downsampling, removes content above the output Nyquist frequency. The sinc mode
+ * delays the output by half the kernel length.</p>
+ *
+ * <p>Any number of channels, e.g. the x, y and z axes of the accelerometer, share the
+ * same timestamps and are resampled together. Nothing is allocated per sample.</p>
+ *
+ * @see cs.umass.edu.myactivitiestoolkit.util.Interpolator
+ */
+public class Resampler {
+
+    /**
+     * The interpolation kernel.
+     */
+    public enum Mode {
+        /** Linear interpolation between the two neighbouring samples. No delay. */
+        LINEAR,
+        /** Blackman-windowed sinc interpolation. Delayed by half the kernel length. */
+        SINC
+    }
+
+    /**
+     * Receives the resampled output.
+     */
+    public interface OutputListener {
+        /**
+         * Called for each output sample.
+         * @param timestamp the output time, in the same units as the input timestamps.
+         * @param values the value of each channel. The array is reused, so copy it if it must be kept.
+         */
+        void onOutput(long timestamp, double[] values);
+    }
+
+    /** The number of zero crossings of the sinc kernel on each side at full bandwidth. */
+    private static final int ZERO_CROSSINGS = 8;
+
+    /** The number of kernel phases tabulated per input sample. */
+    private static final int PHASES = 256;
+
+    /** The fraction of the lower Nyquist frequency kept when downsampling. */
+    private static final double PASSBAND = 0.9;
+
+    private final Mode mode;
+
+    private final int channels;
+
+    /** The output period in timestamp units. */
+    private final double outputPeriod;
+
+    /** The number of kernel taps on each side of the output position. */
+    private final int halfTaps;
+
+    /**
+     * The polyphase kernel table, PHASES + 1 rows of 2 * halfTaps taps each. Row p holds
+     * the kernel for a fractional offset of p / PHASES; the extra row lets the last phase
+     * be interpolated as well.
+     */
+    private final double[] kernel;
+
+    /** Ring buffers of the recent input timestamps and values, indexed by sequence & mask. */
+    private final long[] times;
+
+    private final double[][] history;
+
+    private final int mask;
+
+    /** The output values handed to the listener. */
+    private final double[] output;
+
+    /** The number of input samples received. */
+    private long received;
+
+    /** The sequence number of the first input sample at or after the next output time. */
+    private long segment;
+
+    /** The next output time, relative to {@link #origin}. */
+    private double nextTime;
+
+    /** The timestamp of the first input sample; all times are kept relative to it. */
+    private long origin;
+
+    private OutputListener listener;
+
+    /**
+     * Creates a resampler.
+     * @param mode the interpolation kernel.
+     * @param channels the number of values per sample.
+     * @param inputRate the nominal input rate in Hz, which sets the anti-aliasing cutoff
+     *                  of the sinc kernel when downsampling. Ignored in linear mode.
+     * @param outputRate the output rate in Hz.
+     * @param unitsPerSecond the number of timestamp units per second, e.g. 1e9 for
+     *                       {@link android.hardware.SensorEvent#timestamp} nanoseconds.
+     */
+    public Resampler(Mode mode, int channels, double inputRate, double outputRate, double unitsPerSecond) {
+        if (channels < 1 || inputRate <= 0 || outputRate <= 0 || unitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid resampler configuration");
+        }
+        this.mode = mode;
+        this.channels = channels;
+        this.outputPeriod = unitsPerSecond / outputRate;
+
+        if (mode == Mode.SINC) {
+            double cutoff = Math.min(1, PASSBAND * outputRate / inputRate);
+            halfTaps = (int) Math.ceil(ZERO_CROSSINGS / cutoff);
+            kernel = designKernel(halfTaps, cutoff);
+        } else {
+            halfTaps = 1;
+            kernel = null;
+        }
+
+        int capacity = Integer.highestOneBit(2 * halfTaps + 2) << 1;
+        mask = capacity - 1;
+        times = new long[capacity];
+        history = new double[channels][capacity];
+        output = new double[channels];
+    }
+
+    /**
+     * Tabulates the windowed-sinc kernel for every phase, normalised to unit DC gain.
+     */
+    private static double[] designKernel(int halfTaps, double cutoff) {
+        int taps = 2 * halfTaps;
+        double[] table = new double[(PHASES + 1) * taps];
+        for (int p = 0; p <= PHASES; p++) {
+            double fraction = (double) p / PHASES;
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                // tap j weighs input sample floor(position) - halfTaps + 1 + j
+                double x = j - halfTaps + 1 - fraction;
+                double w = Math.abs(x) >= halfTaps ? 0
+                        : 0.42 + 0.5 * Math.cos(Math.PI * x / halfTaps) + 0.08 * Math.cos(2 * Math.PI * x / halfTaps);
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                double h = cutoff * sinc * w;
+                table[p * taps + j] = h;
+                sum += h;
+            }
+            for (int j = 0; j < taps; j++) {
+                table[p * taps + j] /= sum;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Registers the listener that receives the output samples.
+     * @param listener the listener.
+     */
+    public void setOutputListener(OutputListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Discards all input. The output restarts at the timestamp of the next input sample.
+     */
+    public void reset() {
+        received = 0;
+        segment = 0;
+        nextTime = 0;
+    }
+
+    /**
+     * Pushes a single-channel sample.
+     * @param timestamp the sample timestamp.
+     * @param value the sample value.
+     */
+    public void push(long timestamp, double value) {
+        if (!accept(timestamp)) {
+            return;
+        }
+        history[0][(int) received & mask] = value;
+        received++;
+        emit(false);
+    }
+
+    /**
+     * Pushes a sample with one value per channel.
+     * @param timestamp the sample timestamp.
+     * @param values the value of each channel.
+     */
+    public void push(long timestamp, float[] values) {
+        if (!accept(timestamp)) {
+            return;
+        }
+        int index = (int) received & mask;
+        for (int c = 0; c < channels; c++) {
+            history[c][index] = values[c];
+        }
+        received++;
+        emit(false);
+    }
+
+    /**
+     * Pushes a sample with one value per channel.
+     * @param timestamp the sample timestamp.
+     * @param values the value of each channel.
+     */
+    public void push(long timestamp, double[] values) {
+        if (!accept(timestamp)) {
+            return;
+        }
+        int index = (int) received & mask;
+        for (int c = 0; c < channels; c++) {
+            history[c][index] = values[c];
+        }
+        received++;
+        emit(false);
+    }
+
+    /**
+     * Emits the output samples still held back by the sinc kernel, up to the last input
+     * timestamp, by assuming the signal stays at its last value. Call at the end of a stream.
+     */
+    public void flush() {
+        if (received > 0) {
+            emit(true);
+        }
+    }
+
+    /**
+     * Records the timestamp of the next sample, or rejects it if time did not advance.
+     */
+    private boolean accept(long timestamp) {
+        if (received == 0) {
+            origin = timestamp;
+        } else if (timestamp <= origin + times[(int) (received - 1) & mask]) {
+            return false;
+        }
+        times[(int) received & mask] = timestamp - origin;
+        return true;
+    }
+
+    /**
+     * Emits every output sample whose input is available.
+     * @param flushing true to treat samples after the last one as equal to it.
+     */
+    private void emit(boolean flushing) {
+        long latest = received - 1;
+        double latestTime = times[(int) latest & mask];
+        while (nextTime <= latestTime) {
+            while (times[(int) segment & mask] < nextTime) {
+                segment++;
+            }
+            // fractional input index of the output time
+            double position;
+            if (segment == 0) {
+                position = 0;
+            } else {
+                long before = times[(int) (segment - 1) & mask];
+                long after = times[(int) segment & mask];
+                position = segment - 1 + (nextTime - before) / (after - before);
+            }
+
+            long base = (long) Math.floor(position);
+            if (!flushing && base + halfTaps > latest) {
+                return;
+            }
+            double fraction = position - base;
+
+            if (mode == Mode.LINEAR) {
+                int i0 = (int) base & mask;
+                int i1 = (int) Math.min(base + 1, latest) & mask;
+                for (int c = 0; c < channels; c++) {
+                    double[] h = history[c];
+                    output[c] = h[i0] + fraction * (h[i1] - h[i0]);
+                }
+            } else {
+                interpolateSinc(base, fraction, latest);
+            }
+
+            if (listener != null) {
+                listener.onOutput(origin + Math.round(nextTime), output);
+            }
+            nextTime += outputPeriod;
+        }
+    }
+
+    /**
+     * Convolves the input around base + fraction with the kernel, blending the two nearest
+     * tabulated phases. Samples before the first or after the last are held at the edge value.
+     */
+    private void interpolateSinc(long base, double fraction, long latest) {
+        int taps = 2 * halfTaps;
+        double phase = fraction * PHASES;
+        int p = (int) phase;
+        double blend = phase - p;
+        int row0 = p * taps;
+        int row1 = row0 + taps;
+        long first = Math.max(0, received - mask - 1);
+
+        for (int c = 0; c < channels; c++) {
+            double[] h = history[c];
+            double sum = 0;
+            long sequence = base - halfTaps + 1;
+            for (int j = 0; j < taps; j++, sequence++) {
+                long clamped = sequence < first ? first : (sequence > latest ? latest : sequence);
+                double k = kernel[row0 + j] + blend * (kernel[row1 + j] - kernel[row0 + j]);
+                sum += k * h[(int) clamped & mask];
+            }
+            output[c] = sum;
+        }
+    }
+}
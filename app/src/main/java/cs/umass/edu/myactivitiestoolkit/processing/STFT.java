@@ -0,0 +1,184 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+/**
+ * Streaming short-time Fourier transform. Samples may be pushed in buffers of any size;
+ * the last frame's worth of samples is kept in a ring, so frames overlap correctly across
+ * buffer boundaries. Each time a hop completes, the current frame is windowed, transformed
+ * with {@link FFT#realForward(double[])} and its magnitude spectrum is passed to the
+ * registered {@link SpectrumListener}. All frame, window and spectrum arrays are allocated
+ * once, so memory use is constant no matter how long the stream runs.
+ *
+ * @see FFT
+ */
+public class STFT {
+
+    /**
+     * Receives a spectrogram column as soon as the corresponding frame is complete.
+     */
+    public interface SpectrumListener {
+        /**
+         * Called with the magnitude spectrum of one frame.
+         * @param frameIndex the index of the frame since the stream started or was reset.
+         * @param magnitudes the frameSize / 2 + 1 bin magnitudes, from DC to Nyquist. The
+         *                   array is reused for the next frame, so copy it if it must be kept.
+         */
+        void onSpectrum(long frameIndex, double[] magnitudes);
+    }
+
+    /** The number of samples in each frame. */
+    private final int frameSize;
+
+    /** The number of samples between the starts of consecutive frames. */
+    private final int hopSize;
+
+    /** The window coefficients, or null for a rectangular window. */
+    private final double[] window;
+
+    private final FFT fft;
+
+    /** Ring buffer holding the most recent {@link #frameSize} samples. */
+    private final double[] history;
+
+    /** Scratch frame, unrolled from {@link #history} and transformed in place. */
+    private final double[] frame;
+
+    /** The magnitude spectrum handed to the listener. */
+    private final double[] magnitudes;
+
+    /** The position in {@link #history} the next sample is written to. */
+    private int writeIndex;
+
+    /** The number of samples still required before the next frame is emitted. */
+    private int samplesUntilFrame;
+
+    private long frameIndex;
+
+    private SpectrumListener listener;
+
+    /**
+     * Creates a streaming STFT.
+     * @param frameSize the frame length, which must be even.
+     * @param hopSize the number of samples between frames.
+     * @param window the window coefficients of length frameSize, or null for a rectangular window.
+     */
+    public STFT(int frameSize, int hopSize, double[] window) {
+        if (frameSize < 2 || (frameSize & 1) != 0) {
+            throw new IllegalArgumentException("STFT frame size must be even and positive");
+        }
+        if (hopSize < 1) {
+            throw new IllegalArgumentException("STFT hop size must be positive");
+        }
+        if (window != null && window.length != frameSize) {
+            throw new IllegalArgumentException("STFT window length must equal the frame size");
+        }
+        this.frameSize = frameSize;
+        this.hopSize = hopSize;
+        this.window = window;
+        this.fft = FFT.getInstance(frameSize);
+        this.history = new double[frameSize];
+        this.frame = new double[frameSize];
+        this.magnitudes = new double[frameSize / 2 + 1];
+        reset();
+    }
+
+    /**
+     * Registers the listener that receives each spectrogram column.
+     * @param listener the listener, or null to stop receiving columns.
+     */
+    public void setSpectrumListener(SpectrumListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the number of frequency bins in each column, i.e. frameSize / 2 + 1.
+     */
+    public int getNumBins() {
+        return magnitudes.length;
+    }
+
+    /**
+     * Discards all buffered samples. The next frame is emitted once a full frame
+     * of new samples has been pushed.
+     */
+    public void reset() {
+        for (int i = 0; i < frameSize; i++) {
+            history[i] = 0;
+        }
+        writeIndex = 0;
+        samplesUntilFrame = frameSize;
+        frameIndex = 0;
+    }
+
+    /**
+     * Pushes a buffer of 16-bit samples, e.g. from the microphone.
+     * @param samples the sample buffer.
+     * @param offset the index of the first sample to push.
+     * @param length the number of samples to push.
+     */
+    public void process(short[] samples, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            process(samples[i]);
+        }
+    }
+
+    /**
+     * Pushes a buffer of samples.
+     * @param samples the sample buffer.
+     * @param offset the index of the first sample to push.
+     * @param length the number of samples to push.
+     */
+    public void process(double[] samples, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            process(samples[i]);
+        }
+    }
+
+    /**
+     * Pushes a single sample.
+     * @param sample the sample value.
+     */
+    public void process(double sample) {
+        history[writeIndex] = sample;
+        if (++writeIndex == frameSize) {
+            writeIndex = 0;
+        }
+        if (--samplesUntilFrame == 0) {
+            emitFrame();
+            samplesUntilFrame = hopSize;
+        }
+    }
+
+    /**
+     * Transforms the most recent frame and notifies the listener.
+     */
+    private void emitFrame() {
+        // the oldest sample sits at writeIndex
+        int tail = frameSize - writeIndex;
+        System.arraycopy(history, writeIndex, frame, 0, tail);
+        System.arraycopy(history, 0, frame, tail, writeIndex);
+
+        if (window != null) {
+            for (int i = 0; i < frameSize; i++) {
+                frame[i] *= window[i];
+            }
+        }
+
+        fft.realForward(frame);
+
+        int last = magnitudes.length - 1;
+        magnitudes[0] = Math.abs(frame[0]);
+        magnitudes[last] = Math.abs(frame[1]);
+        for (int k = 1; k < last; k++) {
+            double re = frame[2 * k];
+            double im = frame[2 * k + 1];
+            magnitudes[k] = Math.sqrt(re * re + im * im);
+        }
+
+        if (listener != null) {
+            listener.onSpectrum(frameIndex, magnitudes);
+        }
+        frameIndex++;
+    }
+}
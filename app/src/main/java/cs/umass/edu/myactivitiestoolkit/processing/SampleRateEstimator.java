@@ -0,0 +1,118 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+/**
+ * Estimates the actual sampling rate of a sensor stream from its timestamps. Android
+ * sensors, the camera preview and the Band deliver at device-dependent, jittery rates, so
+ * the nominal rate is only a hint. The inter-sample interval is tracked by an exponential
+ * moving average; non-increasing timestamps and isolated gaps much longer than the current
+ * estimate (e.g. the sensor was paused) are ignored so they do not pull the estimate off.
+ * Several long intervals in a row are a real slowdown, e.g. a lower sensor delay or a
+ * throttled camera, and re-seed the estimate from those intervals.
+ *
+ * @see Filter
+ */
+public class SampleRateEstimator {
+
+    /** The number of intervals averaged before the estimate is considered ready. */
+    private static final int WARM_UP_INTERVALS = 16;
+
+    /** Intervals longer than this multiple of the current estimate are treated as gaps. */
+    private static final double MAX_GAP_FACTOR = 4;
+
+    /** The number of consecutive gaps after which they are taken as the new sampling interval. */
+    private static final int MAX_CONSECUTIVE_GAPS = 3;
+
+    /** The weight of each new interval in the moving average. */
+    private final double smoothing;
+
+    /** The number of timestamp units per second, e.g. 1e9 for nanoseconds. */
+    private final double unitsPerSecond;
+
+    private long lastTimestamp;
+
+    private boolean hasTimestamp;
+
+    private int intervals;
+
+    /** The averaged interval, in timestamp units. */
+    private double period;
+
+    /** The number of consecutive gaps, and the sum of their intervals. */
+    private int gaps;
+
+    private double gapSum;
+
+    /**
+     * Creates a rate estimator.
+     * @param unitsPerSecond the number of timestamp units per second, e.g. 1e9 for
+     *                       {@link android.hardware.SensorEvent#timestamp} nanoseconds.
+     * @param smoothing the weight of each new interval, in (0, 1]. Smaller values track drift
+     *                  more slowly but are less affected by jitter.
+     */
+    public SampleRateEstimator(double unitsPerSecond, double smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("Smoothing must be in (0, 1]");
+        }
+        this.unitsPerSecond = unitsPerSecond;
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * Adds the timestamp of the next sample.
+     * @param timestamp the sample timestamp.
+     */
+    public void update(long timestamp) {
+        if (!hasTimestamp) {
+            lastTimestamp = timestamp;
+            hasTimestamp = true;
+            return;
+        }
+        long interval = timestamp - lastTimestamp;
+        if (interval <= 0) {
+            return;
+        }
+        lastTimestamp = timestamp;
+
+        if (intervals < WARM_UP_INTERVALS) {
+            // plain running mean until enough intervals have been seen
+            intervals++;
+            period += (interval - period) / intervals;
+        } else if (interval <= MAX_GAP_FACTOR * period) {
+            period += smoothing * (interval - period);
+            gaps = 0;
+            gapSum = 0;
+        } else if (++gaps < MAX_CONSECUTIVE_GAPS) {
+            gapSum += interval;
+        } else {
+            // not a dropout: the stream has slowed down, start over from the long intervals
+            period = (gapSum + interval) / gaps;
+            gaps = 0;
+            gapSum = 0;
+        }
+    }
+
+    /**
+     * @return true once enough intervals have been seen for the estimate to be meaningful.
+     */
+    public boolean isReady() {
+        return intervals >= WARM_UP_INTERVALS;
+    }
+
+    /**
+     * @return the estimated sampling rate in Hz, or {@link Double#NaN} if no interval has been seen.
+     */
+    public double getSampleRate() {
+        return intervals == 0 ? Double.NaN : unitsPerSecond / period;
+    }
+
+    /**
+     * Forgets all timestamps, e.g. after the sensor has been re-registered.
+     */
+    public void reset() {
+        hasTimestamp = false;
+        intervals = 0;
+        period = 0;
+        gaps = 0;
+        gapSum = 0;
+    }
+}
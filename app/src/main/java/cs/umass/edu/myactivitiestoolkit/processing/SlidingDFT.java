@@ -0,0 +1,242 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+/**
+ * A bank of sliding DFT bins for tracking a narrow frequency band, e.g. the heart rate in
+ * a PPG signal or the cadence in an accelerometer signal. Each bin is a Goertzel-style
+ * resonator over the most recent {@link #windowSize} samples and is updated in constant
+ * time per sample, so a new sample costs O(bins) instead of a full FFT per window:
+ * <pre>
+ *   S[n] = x[n] + z S[n-1] - z^N x[n-N],   z = exp(i w)
+ * </pre>
+ * Unlike FFT bins, the bin frequencies are arbitrary, so the band of interest can be
+ * covered densely with a few dozen bins. The window mean is removed when the power is
+ * read, so a large DC offset (e.g. the mean red value) does not leak into the bins.
+ *
+ * @see FFT
+ */
+public class SlidingDFT {
+
+    /**
+     * The bins are recomputed from the sample history after this many windows, which
+     * bounds the rounding error accumulated by the recurrence on long-running streams.
+     */
+    private static final int RESYNC_WINDOWS = 64;
+
+    private final double sampleRate;
+
+    /** The number of samples in the sliding window. */
+    private final int windowSize;
+
+    /** The frequency of each bin in Hz. */
+    private final double[] frequencies;
+
+    /** The per-sample rotation z = exp(i w) of each bin. */
+    private final double[] rotRe, rotIm;
+
+    /** z^N, applied to the sample leaving the window. */
+    private final double[] rotNRe, rotNIm;
+
+    /** The response of each bin to a constant input of 1, used to remove the window mean. */
+    private final double[] dcRe, dcIm;
+
+    /** The current value of each bin. */
+    private final double[] binRe, binIm;
+
+    /** Ring buffer of the samples in the window. */
+    private final double[] history;
+
+    private int writeIndex;
+
+    private int count;
+
+    private double sum;
+
+    private long samplesUntilResync;
+
+    /**
+     * Creates a bank of equally spaced bins covering [minFrequency, maxFrequency].
+     * @param sampleRate the sampling rate of the input in Hz.
+     * @param windowSize the number of samples in the sliding window.
+     * @param minFrequency the frequency of the lowest bin in Hz.
+     * @param maxFrequency the frequency of the highest bin in Hz.
+     * @param numBins the number of bins, at least 2.
+     */
+    public SlidingDFT(double sampleRate, int windowSize, double minFrequency, double maxFrequency, int numBins) {
+        if (numBins < 2 || windowSize < 1 || maxFrequency <= minFrequency) {
+            throw new IllegalArgumentException("Invalid sliding DFT configuration");
+        }
+        this.sampleRate = sampleRate;
+        this.windowSize = windowSize;
+        frequencies = new double[numBins];
+        rotRe = new double[numBins];
+        rotIm = new double[numBins];
+        rotNRe = new double[numBins];
+        rotNIm = new double[numBins];
+        dcRe = new double[numBins];
+        dcIm = new double[numBins];
+        binRe = new double[numBins];
+        binIm = new double[numBins];
+        history = new double[windowSize];
+
+        double step = (maxFrequency - minFrequency) / (numBins - 1);
+        for (int k = 0; k < numBins; k++) {
+            frequencies[k] = minFrequency + k * step;
+            double w = 2 * Math.PI * frequencies[k] / sampleRate;
+            rotRe[k] = Math.cos(w);
+            rotIm[k] = Math.sin(w);
+            rotNRe[k] = Math.cos(w * windowSize);
+            rotNIm[k] = Math.sin(w * windowSize);
+
+            // sum_{j<N} z^j
+            double re = 0, im = 0;
+            for (int j = 0; j < windowSize; j++) {
+                re += Math.cos(w * j);
+                im += Math.sin(w * j);
+            }
+            dcRe[k] = re;
+            dcIm[k] = im;
+        }
+        reset();
+    }
+
+    /**
+     * Clears the window and all bins.
+     */
+    public void reset() {
+        for (int i = 0; i < windowSize; i++) {
+            history[i] = 0;
+        }
+        for (int k = 0; k < frequencies.length; k++) {
+            binRe[k] = 0;
+            binIm[k] = 0;
+        }
+        writeIndex = 0;
+        count = 0;
+        sum = 0;
+        samplesUntilResync = (long) RESYNC_WINDOWS * windowSize;
+    }
+
+    /**
+     * Adds a sample to the window and updates every bin.
+     * @param sample the new sample.
+     */
+    public void update(double sample) {
+        double oldest = history[writeIndex];
+        history[writeIndex] = sample;
+        if (++writeIndex == windowSize) {
+            writeIndex = 0;
+        }
+        if (count < windowSize) {
+            count++;
+        }
+        sum += sample - oldest;
+
+        if (--samplesUntilResync == 0) {
+            resync();
+            return;
+        }
+
+        for (int k = 0; k < frequencies.length; k++) {
+            double re = binRe[k], im = binIm[k];
+            binRe[k] = sample + rotRe[k] * re - rotIm[k] * im - rotNRe[k] * oldest;
+            binIm[k] = rotIm[k] * re + rotRe[k] * im - rotNIm[k] * oldest;
+        }
+    }
+
+    /**
+     * Recomputes every bin directly from the window contents.
+     */
+    private void resync() {
+        for (int k = 0; k < frequencies.length; k++) {
+            // Horner evaluation from the oldest sample: S = x[n] + z (x[n-1] + z (...))
+            double re = 0, im = 0;
+            int index = writeIndex;
+            for (int j = 0; j < windowSize; j++) {
+                double pr = re * rotRe[k] - im * rotIm[k];
+                double pi = re * rotIm[k] + im * rotRe[k];
+                re = pr + history[index];
+                im = pi;
+                if (++index == windowSize) {
+                    index = 0;
+                }
+            }
+            binRe[k] = re;
+            binIm[k] = im;
+        }
+        sum = 0;
+        for (int i = 0; i < windowSize; i++) {
+            sum += history[i];
+        }
+        samplesUntilResync = (long) RESYNC_WINDOWS * windowSize;
+    }
+
+    /**
+     * @return true once a full window of samples has been received.
+     */
+    public boolean isReady() {
+        return count == windowSize;
+    }
+
+    /**
+     * @return the number of bins.
+     */
+    public int getNumBins() {
+        return frequencies.length;
+    }
+
+    /**
+     * @param bin the bin index.
+     * @return the frequency of the bin in Hz.
+     */
+    public double getFrequency(int bin) {
+        return frequencies[bin];
+    }
+
+    /**
+     * Returns the power of the given bin over the current window, with the window mean removed.
+     * @param bin the bin index.
+     * @return the squared magnitude of the bin.
+     */
+    public double getPower(int bin) {
+        double mean = sum / windowSize;
+        double re = binRe[bin] - mean * dcRe[bin];
+        double im = binIm[bin] - mean * dcIm[bin];
+        return re * re + im * im;
+    }
+
+    /**
+     * Estimates the dominant frequency within the band covered by the bins. The
+     * strongest bin is refined by fitting a parabola through it and its neighbours.
+     * @return the dominant frequency in Hz, or {@link Double#NaN} if the window is not yet full.
+     */
+    public double getDominantFrequency() {
+        if (!isReady()) {
+            return Double.NaN;
+        }
+        int n = frequencies.length;
+        int best = 0;
+        double bestPower = getPower(0);
+        for (int k = 1; k < n; k++) {
+            double power = getPower(k);
+            if (power > bestPower) {
+                best = k;
+                bestPower = power;
+            }
+        }
+        if (best == 0 || best == n - 1) {
+            return frequencies[best];
+        }
+        double left = getPower(best - 1);
+        double right = getPower(best + 1);
+        double denominator = left - 2 * bestPower + right;
+        double offset = denominator == 0 ? 0 : 0.5 * (left - right) / denominator;
+        return frequencies[best] + offset * (frequencies[1] - frequencies[0]);
+    }
+
+    /**
+     * @return the sampling rate the bins were designed for, in Hz.
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+}
@@ -0,0 +1,236 @@
+package cs.umass.edu.myactivitiestoolkit.processing;
+
+/**
+ * <p>Zero-phase (forward-backward) filtering of recorded signals, equivalent to MATLAB's and
+ * SciPy's filtfilt. The signal is filtered with a {@link BiquadFilter} design once forwards and
+ * once backwards, which cancels the phase lag of the causal filter, so detected step and PPG
+ * peaks stay where they are in the raw signal. Both ends are extended by odd reflection and the
+ * filter starts from its steady state, which suppresses edge transients.</p>
+ *
+ * <p>The signal may be streamed through in chunks of any size with bounded memory. The forward
+ * pass runs continuously; the backward pass runs over blocks of forward output plus a look-ahead
+ * long enough for the backward filter's start-up transient to decay, so the result matches
+ * whole-signal filtering to within the settling tolerance. Output is delivered to the
+ * {@link OutputListener} one block behind the input, and the rest is flushed by {@link #finish()}.</p>
+ *
+ * @see BiquadFilter
+ */
+public class ZeroPhaseFilter {
+
+    /**
+     * Receives zero-phase filtered samples in signal order.
+     */
+    public interface OutputListener {
+        /**
+         * Called with the next filtered samples.
+         * @param samples the buffer holding the samples. It is reused, so copy the samples if they must be kept.
+         * @param offset the index of the first sample.
+         * @param length the number of samples.
+         */
+        void onOutput(double[] samples, int offset, int length);
+    }
+
+    /** The relative magnitude below which the backward pass transient is considered settled. */
+    private static final double SETTLING_TOLERANCE = 1e-6;
+
+    private final BiquadFilter forward;
+
+    private final BiquadFilter backward;
+
+    /** The number of reflected samples added at each end of the signal. */
+    private final int padLength;
+
+    /** The number of samples emitted per backward pass. */
+    private final int blockSize;
+
+    /** The number of extra forward samples each backward pass starts from. */
+    private final int lookahead;
+
+    /** The first input samples, held until enough are available to build the front padding. */
+    private final double[] head;
+
+    private int headCount;
+
+    private boolean started;
+
+    /** Ring of the most recent input samples, used to build the back padding. */
+    private final double[] tail;
+
+    private int tailIndex;
+
+    private long inputCount;
+
+    /** Forward-filtered samples awaiting the backward pass. */
+    private final double[] buffer;
+
+    private int buffered;
+
+    /** Output of the backward pass. */
+    private final double[] output;
+
+    private OutputListener listener;
+
+    /**
+     * Creates a zero-phase filter.
+     * @param design the filter design. Only its coefficients are used; its state is not modified.
+     * @param blockSize the number of samples emitted per backward pass. Larger blocks amortise
+     *                  the look-ahead better at the cost of memory and latency.
+     */
+    public ZeroPhaseFilter(BiquadFilter design, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.forward = design.copy(1);
+        this.backward = design.copy(1);
+        this.padLength = 3 * (design.getOrder() + 1);
+        this.blockSize = blockSize;
+        this.lookahead = Math.max(padLength, forward.getSettlingSamples(SETTLING_TOLERANCE));
+        this.head = new double[padLength + 1];
+        this.tail = new double[padLength + 1];
+        this.buffer = new double[blockSize + lookahead + padLength];
+        this.output = new double[buffer.length];
+    }
+
+    /**
+     * Filters a whole signal in memory.
+     * @param design the filter design.
+     * @param signal the signal.
+     * @return the zero-phase filtered signal, of the same length.
+     */
+    public static double[] filter(BiquadFilter design, double[] signal) {
+        final double[] result = new double[signal.length];
+        ZeroPhaseFilter filter = new ZeroPhaseFilter(design, Math.max(1, signal.length));
+        filter.setOutputListener(new OutputListener() {
+            private int position = 0;
+
+            @Override
+            public void onOutput(double[] samples, int offset, int length) {
+                System.arraycopy(samples, offset, result, position, length);
+                position += length;
+            }
+        });
+        filter.process(signal, 0, signal.length);
+        filter.finish();
+        return result;
+    }
+
+    /**
+     * Registers the listener that receives the filtered samples.
+     * @param listener the listener.
+     */
+    public void setOutputListener(OutputListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Pushes the next chunk of the signal.
+     * @param samples the sample buffer.
+     * @param offset the index of the first sample.
+     * @param length the number of samples.
+     */
+    public void process(double[] samples, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            process(samples[i]);
+        }
+    }
+
+    /**
+     * Pushes the next sample of the signal.
+     * @param sample the sample.
+     */
+    public void process(double sample) {
+        tail[tailIndex] = sample;
+        if (++tailIndex == tail.length) {
+            tailIndex = 0;
+        }
+        inputCount++;
+
+        if (started) {
+            forwardSample(sample);
+            return;
+        }
+        head[headCount++] = sample;
+        if (headCount == head.length) {
+            startForward();
+        }
+    }
+
+    /**
+     * Ends the signal: pads the end, runs the final backward pass and emits all remaining
+     * samples. The filter is then ready for a new signal.
+     */
+    public void finish() {
+        if (!started) {
+            if (headCount == 0) {
+                return;
+            }
+            startForward();
+        }
+
+        // odd reflection about the last sample
+        int pad = (int) Math.min(padLength, inputCount - 1);
+        int last = tailIndex == 0 ? tail.length - 1 : tailIndex - 1;
+        double end = tail[last];
+        int signalSamples = buffered;
+        for (int i = 1; i <= pad; i++) {
+            int index = last - i;
+            if (index < 0) {
+                index += tail.length;
+            }
+            buffer[buffered++] = forward.filter(0, 2 * end - tail[index]);
+        }
+        backwardPass(buffered, signalSamples);
+
+        forward.reset();
+        backward.reset();
+        buffered = 0;
+        headCount = 0;
+        started = false;
+        tailIndex = 0;
+        inputCount = 0;
+    }
+
+    /**
+     * Primes the forward filter with the odd reflection of the first samples and filters
+     * the samples held so far.
+     */
+    private void startForward() {
+        int pad = Math.min(padLength, headCount - 1);
+        double start = head[0];
+        forward.setSteadyState(0, 2 * start - head[pad]);
+        for (int i = pad; i >= 1; i--) {
+            forward.filter(0, 2 * start - head[i]);
+        }
+        started = true;
+        for (int i = 0; i < headCount; i++) {
+            forwardSample(head[i]);
+        }
+    }
+
+    private void forwardSample(double sample) {
+        buffer[buffered++] = forward.filter(0, sample);
+        if (buffered == blockSize + lookahead) {
+            backwardPass(buffered, blockSize);
+        }
+    }
+
+    /**
+     * Filters buffer[0 .. count) backwards, emits the first {@code emit} results and keeps
+     * the remaining forward samples as the start of the next block.
+     */
+    private void backwardPass(int count, int emit) {
+        if (count == 0) {
+            return;
+        }
+        backward.setSteadyState(0, buffer[count - 1]);
+        for (int i = count - 1; i >= 0; i--) {
+            output[i] = backward.filter(0, buffer[i]);
+        }
+        if (listener != null && emit > 0) {
+            listener.onOutput(output, 0, emit);
+        }
+        System.arraycopy(buffer, emit, buffer, 0, count - emit);
+        buffered = count - emit;
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
@@ -13,7 +14,14 @@ import org.json.JSONObject;
 
 import cs.umass.edu.myactivitiestoolkit.R;
 import cs.umass.edu.myactivitiestoolkit.constants.Constants;
+import cs.umass.edu.myactivitiestoolkit.processing.SampleRateEstimator;
+import cs.umass.edu.myactivitiestoolkit.processing.SlidingDFT;
+import cs.umass.edu.myactivitiestoolkit.steps.AccelerometerWindowReading;
+import cs.umass.edu.myactivitiestoolkit.steps.OnStepListener;
 import cs.umass.edu.myactivitiestoolkit.steps.StepDetector;
+import cs.umass.edu.myactivitiestoolkit.util.BackpressureQueue;
+import cs.umass.edu.myactivitiestoolkit.util.SampleRing;
+import cs.umass.edu.myactivitiestoolkit.util.SensorBatch;
 import edu.umass.cs.MHLClient.client.MessageReceiver;
 import edu.umass.cs.MHLClient.client.MobileIOClient;
 import edu.umass.cs.MHLClient.sensors.AccelerometerReading;
@@ -77,7 +85,7 @@ import edu.umass.cs.MHLClient.sensors.SensorReading;
  * @see SensorEvent
  * @see MobileIOClient
  */
-public class AccelerometerService extends SensorService implements SensorEventListener {
+public class AccelerometerService extends SensorService implements SensorEventListener2 {
 
     /** Used during debugging to identify logs by class */
     private static final String TAG = AccelerometerService.class.getName();
@@ -97,8 +105,106 @@ public class AccelerometerService extends SensorService implements SensorEventLi
     /** The step count as predicted by the Android built-in step detection algorithm. */
     private int mAndroidStepCount = 0;
 
+    /** The requested accelerometer sampling rate, in Hz, the same as {@link SensorManager#SENSOR_DELAY_GAME}. */
+    private static final int ACCELEROMETER_SAMPLE_RATE = 50;
+
+    /** The duration of the cadence analysis window, in seconds. */
+    private static final int CADENCE_WINDOW_DURATION = 5;
+
+    /** The lowest tracked step frequency, in Hz. */
+    private static final double MIN_CADENCE_FREQUENCY = 0.5;
+
+    /** The highest tracked step frequency, in Hz. */
+    private static final double MAX_CADENCE_FREQUENCY = 3.0;
+
+    /** The number of frequency bins, spaced 0.05 Hz (3 steps per minute) apart. */
+    private static final int CADENCE_BINS = 51;
+
+    /** The weight of each new sampling interval in the rate estimate. */
+    private static final double RATE_SMOOTHING = 0.02;
+
+    /**
+     * Measures the rate the accelerometer actually delivers, since the requested sampling
+     * period is only a hint to the sensor.
+     */
+    private final SampleRateEstimator mRateEstimator =
+            new SampleRateEstimator(Constants.TIMESTAMPS.NANOSECONDS_PER_SECOND, RATE_SMOOTHING);
+
+    /**
+     * Tracks the dominant step frequency in the acceleration magnitude. Created once the
+     * sampling rate has been measured; null until then.
+     */
+    private SlidingDFT mCadenceTracker;
+
+    /** The sampling rate the cadence tracker was created for, in Hz. */
+    private double mCadenceSampleRate;
+
+    /** The number of samples received since the cadence was last broadcast. */
+    private int mSamplesSinceCadence = 0;
+
+    /** The requested sampling period, in microseconds. */
+    private static final int SAMPLING_PERIOD_US = 1000000 / ACCELEROMETER_SAMPLE_RATE;
+
+    /**
+     * The longest time events may wait in the hardware FIFO before they are delivered, in
+     * microseconds. The CPU then wakes up once per burst rather than once per sample.
+     */
+    private static final int MAX_REPORT_LATENCY_US = 5000000;
+
+    /** Holds more than one full report latency of samples, so a burst is rarely split. */
+    private static final int BATCH_CAPACITY = 512;
+
+    /**
+     * Processes the batch once the sensor thread has dispatched the events already queued on
+     * its looper, i.e. at the end of a burst. Posted when the first sample of a batch arrives.
+     */
+    private final Runnable mProcessBatch = new Runnable() {
+        @Override
+        public void run() {
+            processBatch();
+        }
+    };
+
+    /** True if the accelerometer has a hardware FIFO and events are delivered in bursts. */
+    private boolean mBatching = false;
+
+    /** The samples received since the batch was last processed. */
+    private final SensorBatch mBatch = new SensorBatch(BATCH_CAPACITY);
+
+    /** The maximum number of samples sent to the server in one {@link AccelerometerWindowReading}. */
+    private static final int UPLOAD_WINDOW_SIZE = 100;
+
+    /** The longest time a sample waits before its window is sent, in milliseconds. */
+    private static final long UPLOAD_INTERVAL_MS = 1000;
+
+    /** The samples, with millisecond timestamps, waiting to be sent to the server. */
+    private final SensorBatch mUploadWindow = new SensorBatch(UPLOAD_WINDOW_SIZE);
+
+    /** The number of upload windows, about a second each, that may wait for the network. */
+    private static final int UPLOAD_QUEUE_CAPACITY = 32;
+
+    /**
+     * Live x, y and z readings for the UI, with millisecond timestamps. Written on the
+     * sensor thread and drained by the UI once per frame.
+     */
+    public static final SampleRing READINGS_FEED = new SampleRing(1024, 3);
+
+    /** Detected steps for the UI, as the x, y and z readings at each step. */
+    public static final SampleRing STEPS_FEED = new SampleRing(64, 3);
+
     public AccelerometerService(){
         mStepDetector = new StepDetector();
+        mStepDetector.registerOnStepListener(new OnStepListener() {
+            @Override
+            public void onStepCountUpdated(int stepCount) {
+                broadcastLocalStepCount(stepCount);
+            }
+
+            @Override
+            public void onStepDetected(long timestamp, float[] values) {
+                broadcastStepDetected(timestamp, values);
+            }
+        });
     }
 
     @Override
@@ -150,7 +256,17 @@ public class AccelerometerService extends SensorService implements SensorEventLi
 
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         mAccelerometerSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        mSensorManager.registerListener(this, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
+        // cadence tracking needs more than the ~5 Hz delivered at SENSOR_DELAY_NORMAL;
+        // if the sensor has a FIFO, let it batch events for up to MAX_REPORT_LATENCY_US
+        mBatching = mAccelerometerSensor.getFifoMaxEventCount() > 0;
+        mSensorManager.registerListener(this, mAccelerometerSensor, SAMPLING_PERIOD_US,
+                mBatching ? MAX_REPORT_LATENCY_US : 0, mSensorHandler);
+        mRateEstimator.reset();
+        mCadenceTracker = null;
+        mSamplesSinceCadence = 0;
+        mStepDetector.reset();
+        mBatch.clear();
+        mUploadWindow.clear();
 
         //TODO : (Assignment 0) Register the accelerometer sensor from the sensor manager.
     }
@@ -161,6 +277,21 @@ public class AccelerometerService extends SensorService implements SensorEventLi
     @Override
     protected void unregisterSensors() {
         //TODO : Unregister your sensors. Make sure mSensorManager is not null before calling its unregisterListener method.
+        if (mSensorManager != null) {
+            mSensorManager.unregisterListener(this);
+        }
+        // process the samples of the last, unfinished burst and upload window
+        processBatch();
+        sendUploadWindow();
+    }
+
+    /**
+     * Thins out the upload windows uniformly when the network falls behind, so the server
+     * still sees the whole recording, at a lower density.
+     */
+    @Override
+    protected BackpressureQueue<SensorReading> createUploadQueue() {
+        return new BackpressureQueue<>(UPLOAD_QUEUE_CAPACITY, BackpressureQueue.Policy.DOWNSAMPLE);
     }
 
     @Override
@@ -209,14 +340,14 @@ public class AccelerometerService extends SensorService implements SensorEventLi
     public void onSensorChanged(SensorEvent event) {
         if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
 
-            // convert the timestamp to milliseconds (note this is not in Unix time)
-            long timestamp_in_milliseconds = (long) ((double) event.timestamp / Constants.TIMESTAMPS.NANOSECONDS_PER_MILLISECOND);
-
-            //TODO: Send the accelerometer reading to the server
-
-            //TODO: broadcast the accelerometer reading to the UI
-
-            //TODO: (Assignment 1) Call the detectSteps method in the StepDetector class
+            mBatch.add(event.timestamp, event.values);
+            // without a FIFO every event is processed on its own; with one, the burst is
+            // processed after the rest of its events, which are already queued on the looper
+            if (!mBatching || mBatch.isFull()) {
+                processBatch();
+            } else if (mBatch.size() == 1) {
+                mSensorHandler.post(mProcessBatch);
+            }
 
         }else if (event.sensor.getType() == Sensor.TYPE_STEP_DETECTOR) {
 
@@ -236,17 +367,107 @@ public class AccelerometerService extends SensorService implements SensorEventLi
         Log.i(TAG, "Accuracy changed: " + accuracy);
     }
 
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        // all events buffered in the FIFO at the time of the flush request have been delivered
+        processBatch();
+    }
+
+    /**
+     * Runs the buffered accelerometer samples through cadence tracking, step detection
+     * and the upload path, then empties the batch.
+     */
+    private void processBatch() {
+        int count = mBatch.size();
+        if (count == 0) {
+            return;
+        }
+        long[] timestamps = mBatch.getTimestamps();
+        float[] x = mBatch.getX(), y = mBatch.getY(), z = mBatch.getZ();
+
+        // track the step frequency in O(bins) per sample and report it once per second
+        for (int i = 0; i < count; i++) {
+            mRateEstimator.update(timestamps[i]);
+            if (mCadenceTracker == null) {
+                if (!mRateEstimator.isReady()) {
+                    continue;
+                }
+                createCadenceTracker(mRateEstimator.getSampleRate());
+            }
+            mCadenceTracker.update(Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]));
+            if (++mSamplesSinceCadence >= mCadenceSampleRate && mCadenceTracker.isReady()) {
+                mSamplesSinceCadence = 0;
+                broadcastCadence(60 * mCadenceTracker.getDominantFrequency());
+            }
+        }
+
+        mStepDetector.detectSteps(timestamps, x, y, z, count);
+
+        sendAccelerometerReadings(timestamps, x, y, z, count);
+
+        for (int i = 0; i < count; i++) {
+            READINGS_FEED.write(timestamps[i] / Constants.TIMESTAMPS.NANOSECONDS_PER_MILLISECOND, x[i], y[i], z[i]);
+        }
+
+        mBatch.clear();
+    }
+
+    /**
+     * Creates the cadence tracker for the measured sampling rate, so that its window spans
+     * {@link #CADENCE_WINDOW_DURATION} seconds and its bins are at the right frequencies on
+     * devices that do not deliver the requested {@link #ACCELEROMETER_SAMPLE_RATE}.
+     * @param sampleRate the measured sampling rate, in Hz.
+     */
+    private void createCadenceTracker(double sampleRate) {
+        mCadenceSampleRate = sampleRate;
+        mCadenceTracker = new SlidingDFT(sampleRate, (int) Math.round(CADENCE_WINDOW_DURATION * sampleRate),
+                MIN_CADENCE_FREQUENCY, MAX_CADENCE_FREQUENCY, CADENCE_BINS);
+        Log.d(TAG, "Cadence tracker at " + sampleRate + " Hz");
+    }
+
     /**
-     * Broadcasts the accelerometer reading to other application components, e.g. the main UI.
+     * Queues a batch of accelerometer readings for the server. Readings are sent in windows of
+     * up to {@link #UPLOAD_WINDOW_SIZE} samples, or after {@link #UPLOAD_INTERVAL_MS} at the latest,
+     * rather than as one {@link AccelerometerReading} per sample.
+     * @param timestamps the sensor timestamps in nanoseconds.
+     * @param x the accelerations along the x axis.
+     * @param y the accelerations along the y axis.
+     * @param z the accelerations along the z axis.
+     * @param count the number of readings.
+     */
+    private void sendAccelerometerReadings(long[] timestamps, float[] x, float[] y, float[] z, int count) {
+        long[] windowTimestamps = mUploadWindow.getTimestamps();
+        for (int i = 0; i < count; i++) {
+            // convert the timestamp to milliseconds (note this is not in Unix time)
+            long timestamp_in_milliseconds = timestamps[i] / Constants.TIMESTAMPS.NANOSECONDS_PER_MILLISECOND;
+            mUploadWindow.add(timestamp_in_milliseconds, x[i], y[i], z[i]);
+            if (mUploadWindow.isFull() || timestamp_in_milliseconds - windowTimestamps[0] >= UPLOAD_INTERVAL_MS) {
+                sendUploadWindow();
+            }
+        }
+    }
+
+    /**
+     * Sends the queued readings to the server as one {@link AccelerometerWindowReading}.
+     */
+    private void sendUploadWindow() {
+        if (mUploadWindow.size() == 0) {
+            return;
+        }
+        sendSensorReading(new AccelerometerWindowReading(mUserID, "MOBILE", "",
+                mUploadWindow.getTimestamps(), mUploadWindow.getX(), mUploadWindow.getY(),
+                mUploadWindow.getZ(), mUploadWindow.size()));
+        mUploadWindow.clear();
+    }
+
+    /**
+     * Sends the accelerometer reading to other application components, e.g. the main UI.
+     * Readings are written to {@link #READINGS_FEED} rather than broadcast as intents, since
+     * they arrive far faster than the UI redraws. Must be called on the sensor thread.
      * @param accelerometerReadings the x, y, and z accelerometer readings
      */
     public void broadcastAccelerometerReading(final long timestamp, final float[] accelerometerReadings) {
-        Intent intent = new Intent();
-        intent.putExtra(Constants.KEY.TIMESTAMP, timestamp);
-        intent.putExtra(Constants.KEY.ACCELEROMETER_DATA, accelerometerReadings);
-        intent.setAction(Constants.ACTION.BROADCAST_ACCELEROMETER_DATA);
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
-        manager.sendBroadcast(intent);
+        READINGS_FEED.write(timestamp, accelerometerReadings);
     }
 
     // ***************** Methods for broadcasting step counts (assignment 1) *****************
@@ -278,17 +499,26 @@ public class AccelerometerService extends SensorService implements SensorEventLi
 
     // TODO: (Assignment 1) Broadcast the step count as computed by your server-side algorithm.
 
-
     /**
-     * Broadcasts a step event to other application components, e.g. the main UI.
-     * Use this if you would like to visualize the detected step on the accelerometer signal.
+     * Broadcasts the current cadence, i.e. the dominant step frequency, to other application
+     * components, e.g. the main UI.
+     * @param stepsPerMinute the cadence in steps per minute.
      */
-    public void broadcastStepDetected(long timestamp, float[] values) {
+    public void broadcastCadence(double stepsPerMinute) {
         Intent intent = new Intent();
-        intent.putExtra(Constants.KEY.ACCELEROMETER_PEAK_TIMESTAMP, timestamp);
-        intent.putExtra(Constants.KEY.ACCELEROMETER_PEAK_VALUE, values);
-        intent.setAction(Constants.ACTION.BROADCAST_ACCELEROMETER_PEAK);
+        intent.putExtra(Constants.KEY.CADENCE, stepsPerMinute);
+        intent.setAction(Constants.ACTION.BROADCAST_CADENCE);
         LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         manager.sendBroadcast(intent);
     }
+
+
+    /**
+     * Sends a step event to other application components, e.g. the main UI, through
+     * {@link #STEPS_FEED}. Use this if you would like to visualize the detected step on
+     * the accelerometer signal. Must be called on the sensor thread.
+     */
+    public void broadcastStepDetected(long timestamp, float[] values) {
+        STEPS_FEED.write(timestamp, values);
+    }
 }
@@ -4,17 +4,21 @@ import android.content.Intent;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
 
-import org.imirsel.m2k.util.Window;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import at.tuwien.ifs.feature.extraction.audio.spectrum.Spectrogram;
+import java.util.ArrayList;
+
 import cs.umass.edu.myactivitiestoolkit.R;
 import cs.umass.edu.myactivitiestoolkit.audio.AudioBufferReading;
 import cs.umass.edu.myactivitiestoolkit.audio.MicrophoneRecorder;
+import cs.umass.edu.myactivitiestoolkit.codec.AudioEncoder;
 import cs.umass.edu.myactivitiestoolkit.constants.Constants;
+import cs.umass.edu.myactivitiestoolkit.processing.STFT;
+import cs.umass.edu.myactivitiestoolkit.util.BackpressureQueue;
 import cs.umass.edu.myactivitiestoolkit.view.fragments.AudioFragment;
 import edu.umass.cs.MHLClient.client.MessageReceiver;
+import edu.umass.cs.MHLClient.sensors.SensorReading;
 
 /**
  * The audio service records audio data from the microphone. Data is recorded at 8 kHz, meaning
@@ -49,6 +53,36 @@ public class AudioService extends SensorService implements MicrophoneRecorder.Mi
     /** The sensor responsible for collecting audio data from the phone. */
     private MicrophoneRecorder mMicrophoneRecorder;
 
+    /** The number of samples in each spectrogram frame. */
+    private static final int SPECTROGRAM_FRAME_SIZE = 100;
+
+    /** The number of samples between consecutive spectrogram frames. */
+    private static final int SPECTROGRAM_HOP_SIZE = 50;
+
+    /** The codec used to compress the audio sent to the server. */
+    private static final AudioEncoder.Mode AUDIO_CODEC = AudioEncoder.Mode.DELTA_RICE;
+
+    /** The number of one-second audio buffers that may wait for the network. */
+    private static final int UPLOAD_QUEUE_CAPACITY = 8;
+
+    /** Compresses consecutive microphone buffers; used only on the recording thread. */
+    private final AudioEncoder mAudioEncoder = new AudioEncoder(AUDIO_CODEC);
+
+    /** Computes the spectrogram incrementally, carrying the frame overlap across buffers. */
+    private final STFT mSTFT = new STFT(SPECTROGRAM_FRAME_SIZE, SPECTROGRAM_HOP_SIZE, null);
+
+    /** The spectrogram columns completed since the last broadcast. */
+    private final ArrayList<double[]> mSpectrogramColumns = new ArrayList<>();
+
+    public AudioService(){
+        mSTFT.setSpectrumListener(new STFT.SpectrumListener() {
+            @Override
+            public void onSpectrum(long frameIndex, double[] magnitudes) {
+                mSpectrogramColumns.add(magnitudes.clone());
+            }
+        });
+    }
+
     @Override
     protected void onServiceStarted() {
         broadcastMessage(Constants.MESSAGE.AUDIO_SERVICE_STARTED);
@@ -60,6 +94,9 @@ public class AudioService extends SensorService implements MicrophoneRecorder.Mi
     }
 
     protected void registerSensors() {
+        mSTFT.reset();
+        mSpectrogramColumns.clear();
+        mAudioEncoder.reset();
         mMicrophoneRecorder = MicrophoneRecorder.getInstance();
 
         Log.d(TAG, "Starting microphone.");
@@ -94,6 +131,15 @@ public class AudioService extends SensorService implements MicrophoneRecorder.Mi
         super.onConnected();
     }
 
+    /**
+     * Keeps the most recent audio when the network falls behind: a second of audio is a
+     * large buffer, and stale audio is worth less than current audio.
+     */
+    @Override
+    protected BackpressureQueue<SensorReading> createUploadQueue() {
+        return new BackpressureQueue<>(UPLOAD_QUEUE_CAPACITY, BackpressureQueue.Policy.DROP_OLDEST);
+    }
+
     @Override
     protected int getNotificationID() {
         return Constants.NOTIFICATION_ID.AUDIO_SERVICE;
@@ -123,13 +169,14 @@ public class AudioService extends SensorService implements MicrophoneRecorder.Mi
 
     /**
      * Called when an audio buffer is received. We compute and visualize the spectrogram
-     * for you.
+     * for you. The {@link STFT} keeps the overlap with the previous buffer, so the columns
+     * broadcast here continue seamlessly from the last ones.
      * <br><br>
      *
-     * Your job is just to send the audio buffer to the server. You should wrap it using
-     * an {@link AudioBufferReading}. For the timestamp, you can pass in any arbitrary
-     * value, or the current system time. It doesn't matter since it won't be used on the
-     * other end, as we aren't live streaming the audio data.
+     * The buffer is sent to the server as an {@link AudioBufferReading}. Once the server
+     * accepts the binary encoding, the buffers are compressed by {@link #mAudioEncoder},
+     * which carries its state from one buffer to the next. The timestamp is the current
+     * system time; it isn't used on the other end, as we aren't live streaming the audio data.
      *
      * @param buffer the raw audio data
      * @param window_size the size of the buffer
@@ -142,16 +189,17 @@ public class AudioService extends SensorService implements MicrophoneRecorder.Mi
     public void microphoneBuffer(short[] buffer, int window_size) {
         Log.d(TAG, String.valueOf(buffer.length));
 
-        //TODO: Send the audio buffer to the server
+        //send the audio buffer to the server, compressed as it streams in
+        sendSensorReading(new AudioBufferReading(mUserID, "MOBILE", "", System.currentTimeMillis(),
+                buffer, window_size, mAudioEncoder));
 
-        //convert short[] to double[] for computing spectrogram
-        double[] dBuffer = new double[buffer.length];
-        for (int j=0;j<buffer.length;j++) {
-            dBuffer[j] = buffer[j];
+        //compute the spectrogram columns completed by this buffer
+        mSTFT.process(buffer, 0, window_size);
+        if (mSpectrogramColumns.isEmpty()) {
+            return;
         }
-
-        //compute spectrogram
-        double[][] spectrogram = Spectrogram.computeSpectrogram(dBuffer, 100, 50, Window.RECTANGULAR);
+        double[][] spectrogram = mSpectrogramColumns.toArray(new double[mSpectrogramColumns.size()][]);
+        mSpectrogramColumns.clear();
 
         //broadcast to UI
         broadcastSpectrogram(spectrogram);
@@ -65,7 +65,7 @@ public class LocationService extends SensorService implements LocationListener {
                 MIN_TIME,
                 MIN_DISTANCE,
                 this,
-                getMainLooper());
+                mSensorHandler.getLooper());
 
     }
 
@@ -101,7 +101,7 @@ public class LocationService extends SensorService implements LocationListener {
         dao.openWrite();
         dao.insert(new GPSLocation(location.getTime(),location.getLatitude(),location.getLongitude(), location.getAccuracy()));
         dao.close();
-        mClient.sendSensorReading(new GPSReading(mUserID, "MOBILE", "", location.getTime(), location.getLatitude(), location.getLongitude()));
+        sendSensorReading(new GPSReading(mUserID, "MOBILE", "", location.getTime(), location.getLatitude(), location.getLongitude()));
     }
 
     @Override
@@ -3,14 +3,18 @@ package cs.umass.edu.myactivitiestoolkit.services;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.PixelFormat;
 import android.hardware.Camera;
+import android.os.Build;
+import android.preference.PreferenceManager;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.WindowManager;
 
 import cs.umass.edu.myactivitiestoolkit.R;
+import cs.umass.edu.myactivitiestoolkit.ppg.Camera2PPGSensor;
 import cs.umass.edu.myactivitiestoolkit.ppg.HRSensorReading;
 import cs.umass.edu.myactivitiestoolkit.ppg.PPGSensorReading;
 import cs.umass.edu.myactivitiestoolkit.constants.Constants;
@@ -18,11 +22,14 @@ import cs.umass.edu.myactivitiestoolkit.ppg.PPGSensor;
 import cs.umass.edu.myactivitiestoolkit.ppg.PPGEvent;
 import cs.umass.edu.myactivitiestoolkit.ppg.PPGListener;
 import cs.umass.edu.myactivitiestoolkit.processing.Filter;
+import cs.umass.edu.myactivitiestoolkit.processing.SlidingDFT;
+import cs.umass.edu.myactivitiestoolkit.util.SampleRing;
 import edu.umass.cs.MHLClient.client.MobileIOClient;
 
 /**
- * Photoplethysmography service. This service uses a {@link PPGSensor}
- * to collect PPG data using a standard camera with continuous flash. This is where
+ * Photoplethysmography service. This service uses a {@link PPGSensor}, or a
+ * {@link Camera2PPGSensor} if enabled in the settings, to collect PPG data using a standard
+ * camera with continuous flash. This is where
  * you will do most of your work for this assignment.
  * <br><br>
  * <b>ASSIGNMENT (PHOTOPLETHYSMOGRAPHY)</b> :
@@ -56,9 +63,62 @@ public class PPGService extends SensorService implements PPGListener
     /* Surface view responsible for collecting PPG data and displaying the camera preview. */
     private PPGSensor mPPGSensor;
 
+    /* Collects PPG data with the camera2 API, without a preview or overlay window. */
+    private Camera2PPGSensor mCamera2PPGSensor;
+
+    /**
+     * @param context the context whose default shared preferences are read.
+     * @return true if PPG data is collected with the camera2 API, which needs no overlay
+     * window and therefore no permission to draw over other apps. The camera2 sensor has not
+     * been verified on many devices yet, so it is used only if enabled in the settings.
+     */
+    public static boolean usesCamera2(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(context.getString(R.string.pref_camera2_key),
+                context.getResources().getBoolean(R.bool.pref_camera2_default));
+    }
+
+    /** The duration of the heart rate analysis window, in seconds. */
+    private static final int HEART_RATE_WINDOW_DURATION = 10;
+
+    /** The lowest tracked heart rate frequency, in Hz (42 bpm). */
+    private static final double MIN_HEART_RATE_FREQUENCY = 0.7;
+
+    /** The highest tracked heart rate frequency, in Hz (210 bpm). */
+    private static final double MAX_HEART_RATE_FREQUENCY = 3.5;
+
+    /** The number of frequency bins, spaced 0.05 Hz (3 bpm) apart. */
+    private static final int HEART_RATE_BINS = 57;
+
+    /**
+     * Tracks the dominant frequency of the PPG signal within the heart rate band. Created on
+     * the first frame, once the sensor knows the frame rate it runs at; null until then.
+     */
+    private SlidingDFT mHeartRateTracker;
+
+    /** The frame rate the heart rate tracker was created for, in frames per second. */
+    private double mSampleRate;
+
+    /** The number of samples received since the heart rate was last broadcast. */
+    private int mSamplesSinceHeartRate = 0;
+
+    /** Live PPG readings for the UI, drained once per frame. */
+    public static final SampleRing READINGS_FEED = new SampleRing(256, 1);
+
+    /** Detected heart beats for the UI, drained once per frame. */
+    public static final SampleRing PEAKS_FEED = new SampleRing(64, 1);
+
     @Override
     protected void start() {
         Log.d(TAG, "START");
+        if (usesCamera2(this)) {
+            mCamera2PPGSensor = new Camera2PPGSensor(getApplicationContext());
+            super.start();
+            return;
+        }
         mPPGSensor = new PPGSensor(getApplicationContext(), null);
 
         WindowManager winMan = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
@@ -99,6 +159,8 @@ public class PPGService extends SensorService implements PPGListener
 
     @Override
     protected void onServiceStopped() {
+        if (mCamera2PPGSensor != null)
+            mCamera2PPGSensor.stop();
         if (mPPGSensor != null)
             mPPGSensor.stop();
         if (mPPGSensor != null) {
@@ -109,12 +171,22 @@ public class PPGService extends SensorService implements PPGListener
 
     @Override
     protected void registerSensors() {
-        // TODO: Register a PPG listener with the PPG sensor (mPPGSensor)
+        mHeartRateTracker = null;
+        mSamplesSinceHeartRate = 0;
+        if (mCamera2PPGSensor != null) {
+            mCamera2PPGSensor.registerListener(this);
+            mCamera2PPGSensor.start();
+            return;
+        }
+        mPPGSensor.registerListener(this);
     }
 
     @Override
     protected void unregisterSensors() {
-        // TODO: Unregister the PPG listener
+        if (mCamera2PPGSensor != null)
+            mCamera2PPGSensor.unregisterListener(this);
+        if (mPPGSensor != null)
+            mPPGSensor.unregisterListener(this);
     }
 
     @Override
@@ -156,6 +228,17 @@ public class PPGService extends SensorService implements PPGListener
     @SuppressWarnings("deprecation")
     @Override
     public void onSensorChanged(PPGEvent event) {
+        if (mHeartRateTracker == null && !createHeartRateTracker()) {
+            // the frame rate has not been measured yet
+            return;
+        }
+        // the sliding DFT updates the heart rate band in O(bins) per frame, report it once per second
+        mHeartRateTracker.update(event.value);
+        if (++mSamplesSinceHeartRate >= mSampleRate && mHeartRateTracker.isReady()) {
+            mSamplesSinceHeartRate = 0;
+            broadcastBPM((int) Math.round(60 * mHeartRateTracker.getDominantFrequency()));
+        }
+
         // TODO: Smooth the signal using a Butterworth / exponential smoothing filter
         // TODO: send the data to the UI fragment for visualization, using broadcastPPGReading(...)
         // TODO: Send the filtered mean red value to the server
@@ -165,16 +248,30 @@ public class PPGService extends SensorService implements PPGListener
     }
 
     /**
-     * Broadcasts the PPG reading to other application components, e.g. the main UI.
+     * Creates the heart rate tracker for the frame rate measured by the sensor, so that its
+     * window spans {@link #HEART_RATE_WINDOW_DURATION} seconds and its bins are at the right
+     * frequencies wherever the camera settles within its frame rate range.
+     * @return false if the frame rate has not been measured yet, in which case no tracker is created.
+     */
+    private boolean createHeartRateTracker() {
+        double frameRate = mCamera2PPGSensor != null ? mCamera2PPGSensor.getFrameRate() : mPPGSensor.getFrameRate();
+        if (frameRate <= 0) {
+            return false;
+        }
+        mSampleRate = frameRate;
+        mHeartRateTracker = new SlidingDFT(mSampleRate, (int) Math.round(HEART_RATE_WINDOW_DURATION * mSampleRate),
+                MIN_HEART_RATE_FREQUENCY, MAX_HEART_RATE_FREQUENCY, HEART_RATE_BINS);
+        Log.d(TAG, "Heart rate tracker at " + mSampleRate + " fps");
+        return true;
+    }
+
+    /**
+     * Sends the PPG reading to other application components, e.g. the main UI, through
+     * {@link #READINGS_FEED}. Must always be called from the same thread.
      * @param ppgReading the mean red value.
      */
     public void broadcastPPGReading(final long timestamp, final double ppgReading) {
-        Intent intent = new Intent();
-        intent.putExtra(Constants.KEY.PPG_DATA, ppgReading);
-        intent.putExtra(Constants.KEY.TIMESTAMP, timestamp);
-        intent.setAction(Constants.ACTION.BROADCAST_PPG);
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
-        manager.sendBroadcast(intent);
+        READINGS_FEED.write(timestamp, (float) ppgReading);
     }
 
     /**
@@ -190,15 +287,12 @@ public class PPGService extends SensorService implements PPGListener
     }
 
     /**
-     * Broadcasts the current heart rate in BPM to other application components, e.g. the main UI.
-     * @param timestamp the current beats per minute measurement.
+     * Sends a detected heart beat to other application components, e.g. the main UI,
+     * through {@link #PEAKS_FEED}. Must always be called from the same thread.
+     * @param timestamp the time of the peak.
+     * @param value the PPG value at the peak.
      */
     public void broadcastPeak(final long timestamp, final double value) {
-        Intent intent = new Intent();
-        intent.putExtra(Constants.KEY.PPG_PEAK_TIMESTAMP, timestamp);
-        intent.putExtra(Constants.KEY.PPG_PEAK_VALUE, value);
-        intent.setAction(Constants.ACTION.BROADCAST_PPG_PEAK);
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
-        manager.sendBroadcast(intent);
+        PEAKS_FEED.write(timestamp, (float) value);
     }
 }
\ No newline at end of file
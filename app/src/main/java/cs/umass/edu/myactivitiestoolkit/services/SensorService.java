@@ -4,17 +4,30 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import cs.umass.edu.myactivitiestoolkit.R;
+import cs.umass.edu.myactivitiestoolkit.codec.EncodingOffer;
+import cs.umass.edu.myactivitiestoolkit.codec.ReadingEncoding;
 import cs.umass.edu.myactivitiestoolkit.constants.Constants;
+import cs.umass.edu.myactivitiestoolkit.storage.ReadingSpool;
+import cs.umass.edu.myactivitiestoolkit.storage.SpoolableReading;
+import cs.umass.edu.myactivitiestoolkit.storage.SpooledReading;
+import cs.umass.edu.myactivitiestoolkit.util.BackpressureQueue;
 import cs.umass.edu.myactivitiestoolkit.view.activities.MainActivity;
 import edu.umass.cs.MHLClient.client.ConnectionStateHandler;
+import edu.umass.cs.MHLClient.client.MessageReceiver;
 import edu.umass.cs.MHLClient.client.MobileIOClient;
+import edu.umass.cs.MHLClient.sensors.SensorReading;
 
 /**
  * Base implementation of a foreground sensor service. This includes functionality that is common
@@ -25,6 +38,19 @@ import edu.umass.cs.MHLClient.client.MobileIOClient;
  * and {@link #getNotificationID()}. This ensures that the only code required in each concrete
  * implementation is relevant to the corresponding sensors and the service related code can be
  * maintained separately. A sensor service is not instantiable.
+ * <br><br>
+ * Each service owns a {@link HandlerThread}. {@link #registerSensors()} and
+ * {@link #unregisterSensors()} run on it, and subclasses should pass {@link #mSensorHandler}
+ * when registering listeners, so sensor callbacks and processing stay off the main thread
+ * and only the results reach the UI.
+ * <br><br>
+ * Readings should be sent with {@link #sendSensorReading(SensorReading)}. While the server
+ * cannot be reached, {@link SpoolableReading spoolable readings} are stored in the
+ * {@link ReadingSpool} instead, and forwarded once the connection is back. Readings are
+ * handed to the client or the spool on an upload thread, through a
+ * {@link BackpressureQueue} whose policy subclasses choose in {@link #createUploadQueue()},
+ * so a slow network sheds readings in a known way instead of backing up into the sensor
+ * thread or memory.
  *
  * @author CS390MB
  *
@@ -43,6 +69,34 @@ public abstract class SensorService extends Service implements ConnectionStateHa
     /** The user ID required to authenticate the server connection. */
     protected String mUserID;
 
+    /** True while the server is connected. The client is shared by all services, so is the state. */
+    private static volatile boolean sConnected;
+
+    /**
+     * True from the time the server is connected until the spool has been drained. Readings
+     * are still spooled in the meantime, so the server receives them in order.
+     */
+    private static volatile boolean sDraining;
+
+    /** Stores readings while the server cannot be reached. */
+    private ReadingSpool mSpool;
+
+    /** The thread on which sensor callbacks are received and processed. */
+    private HandlerThread mSensorThread;
+
+    /**
+     * Posts to the sensor thread. Pass it when registering sensor listeners. It is never
+     * cleared, so work already posted, e.g. {@link #registerSensors()}, can still use it
+     * while the service stops; posts to a thread that has quit are dropped.
+     */
+    protected volatile Handler mSensorHandler;
+
+    /** The default number of readings waiting to be uploaded. */
+    private static final int DEFAULT_UPLOAD_QUEUE_CAPACITY = 64;
+
+    /** Readings waiting for the upload thread, or null while the service is stopped. */
+    private volatile BackpressureQueue<SensorReading> mUploadQueue;
+
     /**
      * Called when the servie has been started.
      */
@@ -95,6 +149,15 @@ public abstract class SensorService extends Service implements ConnectionStateHa
      */
     protected abstract int getNotificationIconResourceID();
 
+    /**
+     * Creates the queue of readings waiting to be uploaded. Subclasses should override this
+     * to pick the capacity and load-shedding policy that suit their stream.
+     * @return a new queue.
+     */
+    protected BackpressureQueue<SensorReading> createUploadQueue() {
+        return new BackpressureQueue<>(DEFAULT_UPLOAD_QUEUE_CAPACITY, BackpressureQueue.Policy.DROP_OLDEST);
+    }
+
     /**
      * Starts the sensor service in the foreground.
      */
@@ -102,7 +165,18 @@ public abstract class SensorService extends Service implements ConnectionStateHa
         Log.d(TAG, "Service started");
         startForeground(getNotificationID(), getNotification());
         connectToServer();
-        registerSensors();
+        if (mSensorThread == null) {
+            mSensorThread = new HandlerThread(getClass().getSimpleName());
+            mSensorThread.start();
+            mSensorHandler = new Handler(mSensorThread.getLooper());
+            startUploadThread();
+        }
+        mSensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                registerSensors();
+            }
+        });
         onServiceStarted();
     }
 
@@ -111,7 +185,15 @@ public abstract class SensorService extends Service implements ConnectionStateHa
      */
     protected void stop(){
         Log.d(TAG, "Service stopped");
-        unregisterSensors();
+        if (mSensorThread != null) {
+            mSensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    unregisterSensors();
+                }
+            });
+            quitSensorThread();
+        }
 //        if (client != null)
 //            client.disconnect(); //TODO
         stopForeground(true);
@@ -119,6 +201,58 @@ public abstract class SensorService extends Service implements ConnectionStateHa
         onServiceStopped();
     }
 
+    /**
+     * Starts the thread that hands queued readings to the client or the spool. It exits
+     * once its queue has been closed and emptied.
+     */
+    private void startUploadThread() {
+        final BackpressureQueue<SensorReading> queue = createUploadQueue();
+        mUploadQueue = queue;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SensorReading reading;
+                    while ((reading = queue.take()) != null) {
+                        deliverSensorReading(reading);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Log.d(TAG, String.format("Upload queue closed: %d readings offered, %d dropped, %d decimated (%s)",
+                        queue.getOfferedCount(), queue.getDroppedCount(), queue.getDecimatedCount(), queue.getPolicy()));
+            }
+        }, getClass().getSimpleName() + "Upload").start();
+    }
+
+    /**
+     * Stops the sensor thread once the work already posted to it, e.g. unregistering
+     * the sensors, has been done, and closes the upload queue after the readings sent
+     * by that work.
+     */
+    private void quitSensorThread() {
+        final BackpressureQueue<SensorReading> queue = mUploadQueue;
+        mSensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                queue.close();
+                if (mUploadQueue == queue) {
+                    mUploadQueue = null;
+                }
+            }
+        });
+        mSensorThread.quitSafely();
+        mSensorThread = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mSensorThread != null) {
+            quitSensorThread();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null){
@@ -139,11 +273,93 @@ public abstract class SensorService extends Service implements ConnectionStateHa
      */
     protected void connectToServer(){
         mUserID = getString(R.string.mobile_health_client_user_id);
+        mSpool = ReadingSpool.getInstance(this);
         mClient = MobileIOClient.getInstance(this, mUserID);
         mClient.setConnectionStateHandler(this);
         mClient.connect();
     }
 
+    /**
+     * Sends a reading to the server. The reading is queued for the upload thread, subject
+     * to the queue's load-shedding policy.
+     * @param reading the reading.
+     * @return false if the reading was shed.
+     */
+    protected boolean sendSensorReading(SensorReading reading) {
+        BackpressureQueue<SensorReading> queue = mUploadQueue;
+        if (queue == null) {
+            deliverSensorReading(reading);
+            return true;
+        }
+        return queue.offer(reading);
+    }
+
+    /**
+     * @return the queue of readings waiting to be uploaded, e.g. to read its counters,
+     *         or null while the service is stopped.
+     */
+    protected BackpressureQueue<SensorReading> getUploadQueue() {
+        return mUploadQueue;
+    }
+
+    /**
+     * Hands a reading to the client. While the server cannot be reached, e.g. before the
+     * connection is established, the reading is spooled to disk if it is a
+     * {@link SpoolableReading} and sent when the connection is back. Until the spooled
+     * readings have all been sent, new ones are spooled behind them rather than sent ahead.
+     * @param reading the reading.
+     */
+    private void deliverSensorReading(SensorReading reading) {
+        ReadingSpool spool = mSpool;
+        if (spool != null && reading instanceof SpoolableReading) {
+            // the drain switches to direct sends under the spool's lock, once it is empty
+            synchronized (spool) {
+                if (!sConnected || sDraining) {
+                    if (!spool.append(((SpoolableReading) reading).toJSONObject().toString())) {
+                        Log.w(TAG, "Failed to spool reading");
+                    }
+                    return;
+                }
+            }
+        }
+        if (mClient != null) {
+            mClient.sendSensorReading(reading);
+        }
+    }
+
+    /**
+     * Forwards the spooled readings to the server, on the spool's thread, until the spool
+     * is empty or the connection is lost again. Once it is empty, readings are sent directly.
+     */
+    private void drainSpool() {
+        if (mSpool == null) {
+            sDraining = false;
+            return;
+        }
+        final MobileIOClient client = mClient;
+        final String userID = mUserID;
+        mSpool.drainAsync(new ReadingSpool.RecordSink() {
+            @Override
+            public boolean onRecord(String record) {
+                if (!sConnected) {
+                    return false;
+                }
+                try {
+                    client.sendSensorReading(new SpooledReading(userID, new JSONObject(record)));
+                } catch (JSONException e) {
+                    // skip the corrupt record
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                sDraining = false;
+            }
+        });
+    }
+
     /**
      * Broadcasts a message to other application components.
      * @param message a message, as defined in {@link Constants.MESSAGE}
@@ -204,14 +420,38 @@ public abstract class SensorService extends Service implements ConnectionStateHa
         return null;
     }
 
+    /**
+     * Negotiates the encoding of the readings sent over the new connection: readings are sent
+     * as JSON until the server accepts the binary encoding offered here. Then forwards the
+     * readings spooled while the server could not be reached.
+     * @see ReadingEncoding
+     */
     @Override
     public void onConnected() {
         Log.d(TAG, "Connected to server");
+        ReadingEncoding.reset();
+        mClient.registerMessageReceiver(new MessageReceiver(Constants.MHLClientFilter.ENCODING_ACCEPTED) {
+            @Override
+            protected void onMessageReceived(JSONObject json) {
+                try {
+                    JSONObject data = json.getJSONObject("data");
+                    ReadingEncoding.onEncodingAccepted(data.getString("encoding"));
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        mClient.sendSensorReading(new EncodingOffer(mUserID, "MOBILE", "", System.currentTimeMillis()));
+        sDraining = true;
+        sConnected = true;
+        drainSpool();
     }
 
     @Override
     public void onConnectionFailed(Exception e) {
         e.printStackTrace();
         Log.d(TAG, "Connection attempt failed.");
+        sConnected = false;
+        ReadingEncoding.reset();
     }
 }
@@ -0,0 +1,85 @@
+package cs.umass.edu.myactivitiestoolkit.steps;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import cs.umass.edu.myactivitiestoolkit.storage.SpoolableReading;
+import edu.umass.cs.MHLClient.sensors.SensorReading;
+
+/**
+ * Wraps a window of consecutive accelerometer readings into a single sensor reading,
+ * so a whole window is serialized and written to the server at once instead of one
+ * {@link edu.umass.cs.MHLClient.sensors.AccelerometerReading} per sample. The Python
+ * client unpacks the window into individual "SENSOR_ACCEL" samples.
+ *
+ * @see SensorReading
+ * @see edu.umass.cs.MHLClient.client.MobileIOClient
+ */
+public class AccelerometerWindowReading extends SensorReading implements SpoolableReading {
+
+    /** The sample timestamps, in milliseconds. **/
+    private final long[] timestamps;
+
+    /** The accelerations along the x, y and z axes. **/
+    private final float[] x, y, z;
+
+    /**
+     * Instantiates a window reading. The samples are copied, so the arrays may be reused.
+     * @param userID a 10-byte hex string identifying the current user.
+     * @param deviceType describes the device.
+     * @param deviceID unique device identifier.
+     * @param timestamps the sample timestamps, in milliseconds.
+     * @param x the accelerations along the x axis.
+     * @param y the accelerations along the y axis.
+     * @param z the accelerations along the z axis.
+     * @param count the number of samples in the window, at least 1.
+     */
+    public AccelerometerWindowReading(String userID, String deviceType, String deviceID,
+                                      long[] timestamps, float[] x, float[] y, float[] z, int count) {
+        super(userID, deviceType, deviceID, "SENSOR_ACCEL_WINDOW", timestamps[0]);
+        this.timestamps = new long[count];
+        this.x = new float[count];
+        this.y = new float[count];
+        this.z = new float[count];
+        System.arraycopy(timestamps, 0, this.timestamps, 0, count);
+        System.arraycopy(x, 0, this.x, 0, count);
+        System.arraycopy(y, 0, this.y, 0, count);
+        System.arraycopy(z, 0, this.z, 0, count);
+    }
+
+    /**
+     * @return the number of samples in the window.
+     */
+    public int size() {
+        return timestamps.length;
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject obj = getBaseJSONObject();
+        JSONObject data = new JSONObject();
+        try {
+            JSONArray timestampArray = new JSONArray();
+            JSONArray xArray = new JSONArray();
+            JSONArray yArray = new JSONArray();
+            JSONArray zArray = new JSONArray();
+            for (int i = 0; i < timestamps.length; i++) {
+                timestampArray.put(timestamps[i]);
+                xArray.put(x[i]);
+                yArray.put(y[i]);
+                zArray.put(z[i]);
+            }
+            data.put("t", timestamp);
+            data.put("timestamps", timestampArray);
+            data.put("x", xArray);
+            data.put("y", yArray);
+            data.put("z", zArray);
+            obj.put("data", data);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return obj;
+    }
+}
@@ -4,10 +4,23 @@ import android.hardware.SensorEvent;
 
 import java.util.ArrayList;
 
+import cs.umass.edu.myactivitiestoolkit.constants.Constants;
+
 /**
  * This class is responsible for detecting steps from the accelerometer sensor.
  * All {@link OnStepListener step listeners} that have been registered will
  * be notified when a step is detected.
+ * <br><br>
+ * Steps are peaks in the smoothed acceleration magnitude. A peak counts as a step if it
+ * exceeds an adaptive threshold, the mean plus a fraction of the standard deviation of
+ * the magnitude over the last {@link #WINDOW_DURATION} nanoseconds, and lies 0.5 - 2 seconds after
+ * the previous step, with the magnitude having fallen below the mean in between, so that
+ * noise on the crest of a slow step is not counted again. A peak more than 2 seconds after the previous one only counts once
+ * the next peak confirms that walking has resumed, which rejects isolated bumps such as
+ * putting the phone down. The window is measured in time, not samples, so that it spans
+ * more than one stride whatever the sensor rate. The detector keeps all of its state in primitive fields and
+ * arrays, so no memory is allocated per sensor event, even at
+ * {@link android.hardware.SensorManager#SENSOR_DELAY_FASTEST}.
  */
 public class StepDetector {
     /** Used for debugging purposes. */
@@ -22,9 +35,100 @@ public class StepDetector {
      */
     private int stepCount;
 
+    /**
+     * The duration of the signal the adaptive threshold is computed over, in nanoseconds.
+     * It must be longer than {@link #MAX_STEP_INTERVAL}, so that it always spans a whole
+     * stride; otherwise the threshold follows the shape of each step and slow walking is
+     * counted twice.
+     */
+    private static final long WINDOW_DURATION = 3000000000L;
+
+    /** The highest supported sensor rate, in Hz, which sizes the window buffers. */
+    private static final int MAX_SAMPLE_RATE = 500;
+
+    /** The number of magnitudes the window can hold at {@link #MAX_SAMPLE_RATE}. */
+    private static final int WINDOW_CAPACITY = (int) (MAX_SAMPLE_RATE * WINDOW_DURATION / 1000000000L);
+
+    /** The time constant of the exponential smoothing applied to the magnitude, in seconds. */
+    private static final double SMOOTHING_TIME_CONSTANT = 0.05;
+
+    /** The number of standard deviations above the mean a peak must reach. */
+    private static final double THRESHOLD_DEVIATIONS = 0.5;
+
+    /** The smallest standard deviation considered movement, in m/s^2; below it no steps are detected. */
+    private static final double MIN_DEVIATION = 0.5;
+
+    /** The shortest time between two steps, in nanoseconds. */
+    private static final long MIN_STEP_INTERVAL = 500000000L;
+
+    /** The longest time between two steps of the same walk, in nanoseconds. */
+    private static final long MAX_STEP_INTERVAL = 2000000000L;
+
+    /** Ring buffer of the smoothed magnitudes within the window, and their timestamps. */
+    private final double[] mMagnitudes = new double[WINDOW_CAPACITY];
+
+    private final long[] mTimestamps = new long[WINDOW_CAPACITY];
+
+    /** The index of the oldest magnitude in the window. */
+    private int mReadIndex;
+
+    private int mCount;
+
+    /** True once the window spans {@link #WINDOW_DURATION}. */
+    private boolean mWindowFilled;
+
+    /** The smoothed magnitude of the previous sample. */
+    private double mPreviousSmoothed;
+
+    /** Running sum and sum of squares of {@link #mMagnitudes}. */
+    private double mSum, mSumOfSquares;
+
+    private double mSmoothed;
+
+    private long mLastTimestamp;
+
+    private boolean mRising;
+
+    /** The previous sample, which becomes the peak when the magnitude starts falling. */
+    private long mPreviousTimestamp;
+
+    private final float[] mPreviousValues = new float[3];
+
+    /** The timestamp of the last accepted step, or of the last unconfirmed peak. */
+    private long mLastStepTimestamp;
+
+    /** True once the magnitude has fallen below the window mean since the last step. */
+    private boolean mArmed;
+
+    /** True if a peak was found after a pause and waits for the next one to confirm it. */
+    private boolean mPending;
+
+    private final float[] mPendingValues = new float[3];
+
+    /** The values passed to listeners; reused for every step. */
+    private final float[] mStepValues = new float[3];
+
     public StepDetector(){
         mStepListeners = new ArrayList<>();
         stepCount = 0;
+        reset();
+    }
+
+    /**
+     * Discards the buffered signal, e.g. when the sensor is re-registered. The step
+     * count is kept.
+     */
+    public void reset() {
+        mReadIndex = 0;
+        mCount = 0;
+        mWindowFilled = false;
+        mSum = 0;
+        mSumOfSquares = 0;
+        mLastTimestamp = Long.MIN_VALUE;
+        mRising = false;
+        mPending = false;
+        mArmed = true;
+        mLastStepTimestamp = Long.MIN_VALUE;
     }
 
     /**
@@ -60,18 +164,139 @@ public class StepDetector {
      * @param event sensor reading
      */
     public void detectSteps(SensorEvent event) {
-        //TODO: Detect steps! Call onStepDetected(...) when a step is detected.
+        detectSteps(event.timestamp, event.values[0], event.values[1], event.values[2]);
+    }
+
+    /**
+     * Processes a single accelerometer reading.
+     * @param timestamp the sensor timestamp in nanoseconds.
+     * @param x the acceleration along the x axis.
+     * @param y the acceleration along the y axis.
+     * @param z the acceleration along the z axis.
+     */
+    public void detectSteps(long timestamp, float x, float y, float z) {
+        if (timestamp <= mLastTimestamp) {
+            return;
+        }
+        double magnitude = Math.sqrt(x * x + y * y + z * z);
+        if (mCount == 0) {
+            mSmoothed = magnitude;
+        } else {
+            // the smoothing weight follows the actual sampling interval
+            double dt = (timestamp - mLastTimestamp) / 1e9;
+            mSmoothed += (magnitude - mSmoothed) * dt / (SMOOTHING_TIME_CONSTANT + dt);
+        }
+        mLastTimestamp = timestamp;
+
+        // drop the magnitudes that have left the window, or the oldest if the sensor is
+        // faster than the buffers were sized for
+        while (mCount > 0 && (timestamp - mTimestamps[mReadIndex] > WINDOW_DURATION || mCount == WINDOW_CAPACITY)) {
+            if (timestamp - mTimestamps[mReadIndex] > WINDOW_DURATION) {
+                mWindowFilled = true;
+            }
+            double oldest = mMagnitudes[mReadIndex];
+            mSum -= oldest;
+            mSumOfSquares -= oldest * oldest;
+            if (++mReadIndex == WINDOW_CAPACITY) {
+                mReadIndex = 0;
+            }
+            mCount--;
+        }
+        if (mCount == 0) {
+            // after a long pause the window starts over
+            mWindowFilled = false;
+        }
+        int writeIndex = (mReadIndex + mCount) % WINDOW_CAPACITY;
+        mMagnitudes[writeIndex] = mSmoothed;
+        mTimestamps[writeIndex] = timestamp;
+        mCount++;
+        mSum += mSmoothed;
+        mSumOfSquares += mSmoothed * mSmoothed;
+
+        if (mSmoothed < mSum / mCount) {
+            mArmed = true;
+        }
+        double previous = mPreviousSmoothed;
+        mPreviousSmoothed = mSmoothed;
+        if (mCount > 1) {
+            if (mSmoothed < previous && mRising) {
+                onPeak(previous);
+            }
+            mRising = mSmoothed > previous;
+        }
+
+        mPreviousTimestamp = timestamp;
+        mPreviousValues[0] = x;
+        mPreviousValues[1] = y;
+        mPreviousValues[2] = z;
+    }
+
+    /**
+     * Processes a batch of accelerometer readings, e.g. drained from the sensor FIFO.
+     * @param timestamps the sensor timestamps in nanoseconds.
+     * @param x the accelerations along the x axis.
+     * @param y the accelerations along the y axis.
+     * @param z the accelerations along the z axis.
+     * @param count the number of readings in the batch.
+     */
+    public void detectSteps(long[] timestamps, float[] x, float[] y, float[] z, int count) {
+        for (int i = 0; i < count; i++) {
+            detectSteps(timestamps[i], x[i], y[i], z[i]);
+        }
+    }
+
+    /**
+     * Decides whether the peak at the previous sample is a step.
+     * @param peak the smoothed magnitude at the peak.
+     */
+    private void onPeak(double peak) {
+        if (!mWindowFilled || !mArmed) {
+            return;
+        }
+        double mean = mSum / mCount;
+        double deviation = Math.sqrt(Math.max(0, mSumOfSquares / mCount - mean * mean));
+        if (deviation < MIN_DEVIATION || peak < mean + THRESHOLD_DEVIATIONS * deviation) {
+            return;
+        }
+
+        long interval = mPreviousTimestamp - mLastStepTimestamp;
+        if (mLastStepTimestamp != Long.MIN_VALUE && interval < MIN_STEP_INTERVAL) {
+            return;
+        }
+        if (mLastStepTimestamp == Long.MIN_VALUE || interval > MAX_STEP_INTERVAL) {
+            // first peak after a pause: hold it until the next peak confirms the walk
+            mPending = true;
+            mArmed = false;
+            mLastStepTimestamp = mPreviousTimestamp;
+            System.arraycopy(mPreviousValues, 0, mPendingValues, 0, 3);
+            return;
+        }
+        if (mPending) {
+            mPending = false;
+            onStepDetected(mLastStepTimestamp, mPendingValues);
+        }
+        mArmed = false;
+        mLastStepTimestamp = mPreviousTimestamp;
+        onStepDetected(mPreviousTimestamp, mPreviousValues);
     }
 
     /**
      * This method is called when a step is detected. It updates the current step count,
      * notifies all listeners that a step has occurred and also notifies all listeners
      * of the current step count.
+     * @param timestamp the sensor timestamp of the step in nanoseconds. Listeners receive it
+     *                  in milliseconds, like the accelerometer readings sent to the UI.
+     * @param values the accelerometer values at the step. Listeners receive a shared
+     *               array, so they must copy it if they keep it.
      */
     private void onStepDetected(long timestamp, float[] values){
         stepCount++;
-        for (OnStepListener stepListener : mStepListeners){
-            stepListener.onStepDetected(timestamp, values);
+        long timestampInMilliseconds = timestamp / Constants.TIMESTAMPS.NANOSECONDS_PER_MILLISECOND;
+        System.arraycopy(values, 0, mStepValues, 0, 3);
+        // indexed loop: the for-each iterator would allocate on every step
+        for (int i = 0; i < mStepListeners.size(); i++){
+            OnStepListener stepListener = mStepListeners.get(i);
+            stepListener.onStepDetected(timestampInMilliseconds, mStepValues);
             stepListener.onStepCountUpdated(stepCount);
         }
     }
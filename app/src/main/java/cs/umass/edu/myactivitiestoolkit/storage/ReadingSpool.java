@@ -0,0 +1,427 @@
+package cs.umass.edu.myactivitiestoolkit.storage;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A disk-backed store-and-forward spool for encoded sensor readings, used while the
+ * server cannot be reached. The spool is an append-only log split into fixed-size segment
+ * files, each memory-mapped while it is written or read, so appending a record is a copy
+ * into the page cache and draining is a sequential scan.
+ * <br><br>
+ * Each record is its length, the CRC-32 of its bytes and the bytes themselves. The unused
+ * tail of a segment is zero, which marks its end; a record cut short by a crash fails its
+ * checksum and ends the segment as well. When the spool would exceed its size cap, the
+ * oldest segment is deleted along with its records. Records are delivered at least once:
+ * a segment is only deleted once all its records have been drained, and the position
+ * within a segment is not persisted, so records drained right before the process died are
+ * sent again.
+ * <br><br>
+ * All methods are thread-safe.
+ */
+public class ReadingSpool {
+
+    /** Used during debugging to identify logs by class */
+    private static final String TAG = ReadingSpool.class.getName();
+
+    /** When written records are forced to the storage device. */
+    public enum SyncPolicy {
+        /** Only when a segment is complete; the OS writes the page cache back in the meantime. */
+        SEGMENT,
+        /** Also after an append if the last sync was at least the sync interval ago. */
+        INTERVAL,
+        /** After every append. Safest, but costs a write to flash per reading. */
+        ALWAYS
+    }
+
+    /** Receives the records drained from the spool. */
+    public interface RecordSink {
+        /**
+         * Called for each drained record, oldest first.
+         * @param record the record.
+         * @return true if the record was taken; false to stop draining and keep the record.
+         */
+        boolean onRecord(String record);
+    }
+
+    /** The name of the spool directory in the application's files directory. */
+    private static final String DIRECTORY = "spool";
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    /** The number of records drained per batch by {@link #drainAsync(RecordSink, Runnable)}. */
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    /** The length and checksum preceding each record. */
+    private static final int RECORD_HEADER = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ReadingSpool instance;
+
+    /** A segment file, mapped while it is written or read. */
+    private static class Segment {
+        final File file;
+        final long sequence;
+        MappedByteBuffer buffer;
+        /** The end of the records written; the segment size once it is complete. */
+        int writePosition;
+        int readPosition;
+
+        Segment(File file, long sequence) {
+            this.file = file;
+            this.sequence = sequence;
+        }
+    }
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final SyncPolicy syncPolicy;
+
+    private final long syncIntervalMs;
+
+    /** The segments, oldest first; the last one is written. */
+    private final LinkedList<Segment> segments = new LinkedList<>();
+
+    /** The sequence number of the next segment file. */
+    private long nextSequence;
+
+    private final CRC32 crc = new CRC32();
+
+    /** Holds the record being read. */
+    private byte[] recordBytes = new byte[0];
+
+    private long lastSync;
+
+    private long evictedRecords, rejectedRecords;
+
+    private HandlerThread drainThread;
+
+    private Handler drainHandler;
+
+    /**
+     * Returns the spool in the application's files directory, with a 64 MB cap.
+     * @param context the context.
+     * @return the shared spool.
+     */
+    public static synchronized ReadingSpool getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReadingSpool(new File(context.getFilesDir(), DIRECTORY), DEFAULT_SEGMENT_SIZE,
+                    DEFAULT_MAX_BYTES, SyncPolicy.INTERVAL, DEFAULT_SYNC_INTERVAL_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Opens a spool, recovering the records left by a previous process.
+     * @param directory the directory holding the segment files.
+     * @param segmentSize the size of each segment file in bytes, which bounds the record size.
+     * @param maxBytes the size cap; at least one segment is always kept.
+     * @param syncPolicy when written records are forced to the storage device.
+     * @param syncIntervalMs the minimum time between syncs for {@link SyncPolicy#INTERVAL}.
+     */
+    public ReadingSpool(File directory, int segmentSize, long maxBytes, SyncPolicy syncPolicy, long syncIntervalMs) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, maxBytes / segmentSize);
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMs = syncIntervalMs;
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Failed to create spool directory " + directory);
+        }
+        recover();
+    }
+
+    private void recover() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_EXTENSION)) {
+                continue;
+            }
+            try {
+                long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+                recovered.add(new Segment(file, sequence));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring unknown file in spool: " + name);
+            }
+        }
+        Collections.sort(recovered, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        segments.addAll(recovered);
+        if (!segments.isEmpty()) {
+            nextSequence = segments.getLast().sequence + 1;
+        }
+        // a new process never appends to an old segment, whose tail may hold a torn record
+        for (Segment segment : segments) {
+            segment.writePosition = segmentSize;
+        }
+    }
+
+    /**
+     * Appends a record.
+     * @param record the encoded reading.
+     * @return false if the record could not be stored, because it is larger than a segment
+     *         or the storage failed.
+     */
+    public synchronized boolean append(String record) {
+        byte[] bytes = record.getBytes(UTF_8);
+        int size = RECORD_HEADER + bytes.length;
+        if (size > segmentSize) {
+            rejectedRecords++;
+            return false;
+        }
+        try {
+            Segment segment = segments.isEmpty() ? null : segments.getLast();
+            if (segment == null || segment.writePosition + size > segmentSize) {
+                segment = roll(segment);
+            }
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            ByteBuffer buffer = segment.buffer;
+            buffer.position(segment.writePosition);
+            buffer.putInt(bytes.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(bytes);
+            segment.writePosition += size;
+
+            long now = SystemClock.elapsedRealtime();
+            if (syncPolicy == SyncPolicy.ALWAYS
+                    || (syncPolicy == SyncPolicy.INTERVAL && now - lastSync >= syncIntervalMs)) {
+                segment.buffer.force();
+                lastSync = now;
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            rejectedRecords++;
+            return false;
+        }
+    }
+
+    /**
+     * Completes the current segment and starts a new one, evicting the oldest segments if
+     * the spool is full.
+     * @param current the segment being written, or null.
+     * @return the new segment.
+     * @throws IOException if the segment file could not be created.
+     */
+    private Segment roll(Segment current) throws IOException {
+        if (current != null && current.buffer != null) {
+            current.buffer.force();
+            // keep the mapping only if the segment is being drained
+            if (current.readPosition == 0) {
+                current.buffer = null;
+            }
+        }
+        long sequence = nextSequence++;
+        Segment segment = new Segment(new File(directory, sequence + SEGMENT_EXTENSION), sequence);
+        segment.buffer = map(segment.file, FileChannel.MapMode.READ_WRITE);
+        segment.writePosition = 0;
+        segments.addLast(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            evictedRecords += countRecords(oldest);
+            delete(oldest);
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return randomAccessFile.getChannel().map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? file.length() : segmentSize);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void delete(Segment segment) {
+        segment.buffer = null;
+        if (!segment.file.delete()) {
+            Log.w(TAG, "Failed to delete spool segment " + segment.file.getName());
+        }
+    }
+
+    /**
+     * Copies the record at the read position of a segment into {@link #recordBytes} and checks it.
+     * @return the length of the record, or -1 if the segment has no more records.
+     */
+    private int readRecord(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = segment.readPosition;
+        int end = Math.min(segment.writePosition, buffer.limit());
+        if (position + RECORD_HEADER > end) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER + length > end) {
+            return -1;
+        }
+        if (recordBytes.length < length) {
+            recordBytes = new byte[Math.max(length, 2 * recordBytes.length)];
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + RECORD_HEADER);
+        source.get(recordBytes, 0, length);
+        crc.reset();
+        crc.update(recordBytes, 0, length);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? length : -1;
+    }
+
+    /**
+     * Counts the undrained records of a segment, e.g. before it is evicted.
+     */
+    private int countRecords(Segment segment) {
+        try {
+            if (segment.buffer == null) {
+                segment.buffer = map(segment.file, FileChannel.MapMode.READ_ONLY);
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        int count = 0;
+        int length;
+        while ((length = readRecord(segment)) >= 0) {
+            segment.readPosition += RECORD_HEADER + length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drains up to the given number of records, oldest first, in one sequential pass.
+     * Segments are deleted once all their records have been taken.
+     * @param maxRecords the maximum number of records to drain.
+     * @param sink receives the records.
+     * @return the number of records taken by the sink.
+     */
+    public synchronized int drain(int maxRecords, RecordSink sink) {
+        int drained = 0;
+        while (drained < maxRecords && !segments.isEmpty()) {
+            Segment segment = segments.getFirst();
+            boolean writing = segment == segments.getLast() && segment.writePosition < segmentSize;
+            try {
+                if (segment.buffer == null) {
+                    segment.buffer = map(segment.file, FileChannel.MapMode.READ_ONLY);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                segments.removeFirst();
+                delete(segment);
+                continue;
+            }
+            int length = readRecord(segment);
+            if (length < 0) {
+                if (writing) {
+                    if (segment.readPosition == segment.writePosition && segment.readPosition > 0) {
+                        // fully drained: delete it, so it is not sent again after a restart
+                        segments.removeFirst();
+                        delete(segment);
+                    }
+                    break;
+                }
+                segments.removeFirst();
+                delete(segment);
+                continue;
+            }
+            if (!sink.onRecord(new String(recordBytes, 0, length, UTF_8))) {
+                break;
+            }
+            segment.readPosition += RECORD_HEADER + length;
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return true if every record appended has been drained.
+     */
+    public synchronized boolean isEmpty() {
+        if (segments.isEmpty()) {
+            return true;
+        }
+        Segment segment = segments.getFirst();
+        return segments.size() == 1 && segment.readPosition >= segment.writePosition;
+    }
+
+    /**
+     * Drains the spool on a background thread, in batches, until it is empty or the sink
+     * stops taking records.
+     * @param sink receives the records.
+     * @param onEmpty run on the drain thread once the spool is empty, while holding its lock,
+     *                so no record can be appended in between; not run if the sink stops
+     *                taking records first. May be null.
+     */
+    public synchronized void drainAsync(final RecordSink sink, final Runnable onEmpty) {
+        if (drainThread == null) {
+            drainThread = new HandlerThread(ReadingSpool.class.getSimpleName());
+            drainThread.start();
+            drainHandler = new Handler(drainThread.getLooper());
+        }
+        drainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int drained;
+                do {
+                    synchronized (ReadingSpool.this) {
+                        drained = drain(DRAIN_BATCH_SIZE, sink);
+                        if (drained < DRAIN_BATCH_SIZE && isEmpty() && onEmpty != null) {
+                            onEmpty.run();
+                        }
+                    }
+                } while (drained == DRAIN_BATCH_SIZE);
+            }
+        });
+    }
+
+    /**
+     * @return the number of records deleted undelivered because the spool was full.
+     */
+    public synchronized long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    /**
+     * @return the number of records that could not be stored.
+     */
+    public synchronized long getRejectedRecords() {
+        return rejectedRecords;
+    }
+}
@@ -0,0 +1,17 @@
+package cs.umass.edu.myactivitiestoolkit.storage;
+
+import org.json.JSONObject;
+
+/**
+ * A {@link edu.umass.cs.MHLClient.sensors.SensorReading} that can be stored in the
+ * {@link ReadingSpool} while the server cannot be reached. The reading is spooled in the
+ * form it would have been sent in, and sent as a {@link SpooledReading} once the
+ * connection is back.
+ */
+public interface SpoolableReading {
+
+    /**
+     * @return the reading, as sent to the server.
+     */
+    JSONObject toJSONObject();
+}
@@ -0,0 +1,36 @@
+package cs.umass.edu.myactivitiestoolkit.storage;
+
+import org.json.JSONObject;
+
+import edu.umass.cs.MHLClient.sensors.SensorReading;
+
+/**
+ * A reading drained from the {@link ReadingSpool}. It is sent exactly as it was stored.
+ *
+ * @see SpoolableReading
+ */
+public class SpooledReading extends SensorReading {
+
+    /** The reading, as stored in the spool. **/
+    private final JSONObject reading;
+
+    /**
+     * Instantiates a spooled reading.
+     * @param userID a 10-byte hex string identifying the current user.
+     * @param reading the reading, as stored in the spool.
+     */
+    public SpooledReading(String userID, JSONObject reading) {
+        super(userID, "MOBILE", "", reading.optString("sensor_type"), getTimestamp(reading));
+        this.reading = reading;
+    }
+
+    private static long getTimestamp(JSONObject reading) {
+        JSONObject data = reading.optJSONObject("data");
+        return data == null ? 0 : data.optLong("t");
+    }
+
+    @Override
+    protected JSONObject toJSONObject() {
+        return reading;
+    }
+}
@@ -0,0 +1,253 @@
+package cs.umass.edu.myactivitiestoolkit.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue between the producer of a sensor stream and a slower consumer, e.g. the
+ * network, that sheds load according to a {@link Policy} instead of growing without bound.
+ * Every item that is not delivered is counted, so the amount of data lost under load is
+ * known rather than silently absorbed.
+ * <br><br>
+ * Thread-safe; intended for one producer and one consumer thread.
+ *
+ * @param <T> the type of the items.
+ */
+public class BackpressureQueue<T> {
+
+    /** What to do with items offered while the consumer is behind. */
+    public enum Policy {
+        /** When full, discard the oldest queued item to make room. Keeps the freshest data. */
+        DROP_OLDEST,
+        /** When full, discard the offered item. Keeps the queued data contiguous. */
+        DROP_NEWEST,
+        /**
+         * Once the queue is half full, keep only every n-th offered item, so the stream is
+         * thinned out uniformly instead of losing a contiguous stretch; when full, discard
+         * the offered item.
+         */
+        DOWNSAMPLE,
+        /**
+         * When full, block the producer until there is room or the timeout expires, then
+         * discard the offered item. Only for producers that may block.
+         */
+        BLOCK
+    }
+
+    private static final int DEFAULT_DOWNSAMPLE_FACTOR = 2;
+
+    private static final long DEFAULT_BLOCK_TIMEOUT_MS = 100;
+
+    private final ArrayDeque<T> items;
+
+    private final int capacity;
+
+    private final Policy policy;
+
+    private final int downsampleFactor;
+
+    private final long blockTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private boolean closed;
+
+    /** Counts the items offered while downsampling; every n-th one is kept. */
+    private int phase;
+
+    private long offeredCount, droppedCount, decimatedCount;
+
+    /**
+     * Creates a queue that downsamples by 2 and blocks for at most 100 ms, as its policy requires.
+     * @param capacity the maximum number of queued items.
+     * @param policy what to do with items offered while the consumer is behind.
+     */
+    public BackpressureQueue(int capacity, Policy policy) {
+        this(capacity, policy, DEFAULT_DOWNSAMPLE_FACTOR, DEFAULT_BLOCK_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a queue.
+     * @param capacity the maximum number of queued items.
+     * @param policy what to do with items offered while the consumer is behind.
+     * @param downsampleFactor n for {@link Policy#DOWNSAMPLE}: one of n items is kept under load.
+     * @param blockTimeoutMs the longest time {@link Policy#BLOCK} blocks the producer, in milliseconds.
+     */
+    public BackpressureQueue(int capacity, Policy policy, int downsampleFactor, long blockTimeoutMs) {
+        if (capacity < 1 || downsampleFactor < 1) {
+            throw new IllegalArgumentException("Capacity and downsample factor must be positive");
+        }
+        this.items = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.downsampleFactor = downsampleFactor;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+    }
+
+    /**
+     * Offers an item, applying the policy if the consumer is behind.
+     * @param item the item.
+     * @return true if the item was queued, false if it was dropped or decimated, or the
+     *         queue is closed.
+     */
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (closed) {
+                droppedCount++;
+                return false;
+            }
+            offeredCount++;
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (items.size() == capacity) {
+                        items.pollFirst();
+                        droppedCount++;
+                    }
+                    break;
+                case DOWNSAMPLE:
+                    if (items.size() < capacity / 2) {
+                        phase = 0;
+                    } else if (phase++ % downsampleFactor != 0) {
+                        decimatedCount++;
+                        return false;
+                    }
+                    // a kept item is still dropped if the queue is full
+                    if (items.size() == capacity) {
+                        droppedCount++;
+                        return false;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    if (items.size() == capacity) {
+                        droppedCount++;
+                        return false;
+                    }
+                    break;
+                case BLOCK:
+                    long nanos = blockTimeoutNanos;
+                    while (items.size() == capacity && !closed) {
+                        if (nanos <= 0) {
+                            droppedCount++;
+                            return false;
+                        }
+                        try {
+                            nanos = notFull.awaitNanos(nanos);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            droppedCount++;
+                            return false;
+                        }
+                    }
+                    if (closed) {
+                        droppedCount++;
+                        return false;
+                    }
+                    break;
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest item, waiting until one is available.
+     * @return the item, or null once the queue is closed and empty.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            T item = items.pollFirst();
+            notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue: further items are dropped, and {@link #take()} returns null once
+     * the queued items have been taken.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queued items.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the policy.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of items offered while the queue was open.
+     */
+    public long getOfferedCount() {
+        lock.lock();
+        try {
+            return offeredCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of items discarded because the queue was full or closed.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of items discarded by {@link Policy#DOWNSAMPLE} to thin out the stream.
+     */
+    public long getDecimatedCount() {
+        lock.lock();
+        try {
+            return decimatedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
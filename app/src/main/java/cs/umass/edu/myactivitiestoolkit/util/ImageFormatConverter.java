@@ -2,6 +2,13 @@ package cs.umass.edu.myactivitiestoolkit.util;
 
 import androidx.annotation.NonNull;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * This class offers static conversion methods between image data formats. For this class, you
  * will only need to decode RBG image data from NV21 (YUV420SP).
@@ -52,4 +59,312 @@ public class ImageFormatConverter {
             }
         }
     }
+
+    /**
+     * Decodes NV21 (YUV420SP) format image data to RGBA values, exactly as
+     * {@link #decodeYUV420SP(int[], byte[], int, int)} does, but with the per-pixel multiplies
+     * and clamps replaced by table lookups.
+     * @param rgba the array into which the RGBA values are written.
+     * @param yuv420sp the byte array of YUV240SP data.
+     * @param width the width of the camera preview.
+     * @param height the height of the camera preview.
+     */
+    public static void decodeYUV420SPTable(@NonNull int[] rgba, @NonNull byte[] yuv420sp, int width, int height) {
+        decodeRows(rgba, yuv420sp, width, height, 0, height);
+    }
+
+    /**
+     * Decodes NV21 (YUV420SP) format image data to RGBA values like
+     * {@link #decodeYUV420SPTable(int[], byte[], int, int)}, splitting the frame into bands of
+     * rows that are decoded in parallel on a shared pool with one thread per core. The calling
+     * thread decodes one of the bands itself and returns once the whole frame is decoded.
+     * @param rgba the array into which the RGBA values are written.
+     * @param yuv420sp the byte array of YUV240SP data.
+     * @param width the width of the camera preview.
+     * @param height the height of the camera preview.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public static void decodeYUV420SPParallel(@NonNull int[] rgba, @NonNull byte[] yuv420sp, int width, int height)
+            throws InterruptedException {
+        DecodePool pool = DecodePool.INSTANCE;
+        decodeYUV420SPParallel(rgba, yuv420sp, width, height, pool.executor, pool.threads + 1);
+    }
+
+    /**
+     * Decodes NV21 (YUV420SP) format image data to RGBA values like
+     * {@link #decodeYUV420SPTable(int[], byte[], int, int)}, splitting the frame into bands of
+     * rows that are decoded in parallel. The calling thread decodes the last band itself and
+     * returns once the whole frame is decoded.
+     * @param rgba the array into which the RGBA values are written.
+     * @param yuv420sp the byte array of YUV240SP data.
+     * @param width the width of the camera preview.
+     * @param height the height of the camera preview.
+     * @param executor runs the other bands; should have a fixed number of threads.
+     * @param bands the number of bands, typically one more than the number of executor threads.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public static void decodeYUV420SPParallel(@NonNull final int[] rgba, @NonNull final byte[] yuv420sp,
+                                              final int width, final int height,
+                                              @NonNull ExecutorService executor, int bands)
+            throws InterruptedException {
+        // bands start on even rows, so no chroma row is shared between two bands
+        final int bandHeight = ((height + bands - 1) / bands + 1) & ~1;
+        if (bands < 2 || bandHeight >= height) {
+            decodeRows(rgba, yuv420sp, width, height, 0, height);
+            return;
+        }
+        Future<?>[] futures = new Future<?>[(height - 1) / bandHeight];
+        for (int b = 0; b < futures.length; b++) {
+            final int top = b * bandHeight;
+            futures[b] = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    decodeRows(rgba, yuv420sp, width, height, top, top + bandHeight);
+                }
+            });
+        }
+        decodeRows(rgba, yuv420sp, width, height, futures.length * bandHeight, height);
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes the rows from top to bottom, exclusive, using the {@link Tables lookup tables}.
+     */
+    private static void decodeRows(int[] rgba, byte[] yuv420sp, int width, int height, int top, int bottom) {
+        final int frameSize = width * height;
+        final int[] luma = Tables.LUMA, redV = Tables.RED_V, greenV = Tables.GREEN_V,
+                greenU = Tables.GREEN_U, blueU = Tables.BLUE_U;
+        final int[] red = Tables.RED, green = Tables.GREEN, blue = Tables.BLUE;
+
+        for (int j = top, yp = top * width; j < bottom; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            for (int i = 0; i < width; i += 2, uvp += 2) {
+                int v = 0xff & yuv420sp[uvp];
+                int u = 0xff & yuv420sp[uvp + 1];
+                int rv = redV[v], guv = greenV[v] + greenU[u], bu = blueU[u];
+                int y = luma[0xff & yuv420sp[yp]];
+                rgba[yp++] = 0xff000000 | red[(y + rv) >> 10] | green[(y + guv) >> 10] | blue[(y + bu) >> 10];
+                if (i + 1 < width) {
+                    y = luma[0xff & yuv420sp[yp]];
+                    rgba[yp++] = 0xff000000 | red[(y + rv) >> 10] | green[(y + guv) >> 10] | blue[(y + bu) >> 10];
+                }
+            }
+        }
+    }
+
+    /**
+     * The lookup tables of {@link #decodeYUV420SPTable(int[], byte[], int, int)}, built on first use.
+     * The luma and chroma terms are the fixed-point products of the scalar decoder, offset so
+     * that their sum, shifted right by 10, is always a non-negative index. Clamping the sum to
+     * 18 bits and then shifting is the same as shifting and then clamping to 8 bits, so the
+     * channel tables map the shifted sum straight to the clamped channel, already in place.
+     */
+    private static final class Tables {
+
+        /** The offset of the luma term, larger than the most negative chroma term, 2066 * -128. */
+        private static final int OFFSET = 272 << 10;
+
+        private static final int[] LUMA = new int[256];
+
+        private static final int[] RED_V = new int[256], GREEN_V = new int[256],
+                GREEN_U = new int[256], BLUE_U = new int[256];
+
+        /** Indexed by (luma + chroma) >> 10, which is from 13 to 806. */
+        private static final int[] RED = new int[1024], GREEN = new int[1024], BLUE = new int[1024];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int y = i - 16;
+                LUMA[i] = (y < 0 ? 0 : 1192 * y) + OFFSET;
+                int c = i - 128;
+                RED_V[i] = 1634 * c;
+                GREEN_V[i] = -833 * c;
+                GREEN_U[i] = -400 * c;
+                BLUE_U[i] = 2066 * c;
+            }
+            for (int i = 0; i < RED.length; i++) {
+                int channel = Math.max(0, Math.min(255, i - (OFFSET >> 10)));
+                RED[i] = channel << 16;
+                GREEN[i] = channel << 8;
+                BLUE[i] = channel;
+            }
+        }
+    }
+
+    /**
+     * The shared pool of {@link #decodeYUV420SPParallel(int[], byte[], int, int)}, created on
+     * first use with one daemon thread per core besides the calling thread.
+     */
+    private static final class DecodePool {
+
+        private static final DecodePool INSTANCE = new DecodePool();
+
+        private final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+        private final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "ImageDecode-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Computes the mean red value of NV21 (YUV420SP) image data, exactly as if the image had
+     * been decoded by {@link #decodeYUV420SP(int[], byte[], int, int)} and the red channel
+     * averaged, but without materializing the RGBA pixels. Red depends only on the Y and V
+     * planes, so the U samples are never read, and the V term is computed once per pixel pair.
+     * @param yuv420sp the byte array of YUV240SP data.
+     * @param width the width of the camera preview.
+     * @param height the height of the camera preview.
+     * @return the mean red value, from 0 to 255.
+     */
+    public static double meanRed(@NonNull byte[] yuv420sp, int width, int height) {
+        return meanRed(yuv420sp, width, height, 0, 0, width, height, 1);
+    }
+
+    /**
+     * Computes the mean red value over a region of NV21 (YUV420SP) image data, sampling every
+     * stride-th pixel of every stride-th row, without materializing the RGBA pixels. The values
+     * are those of {@link #decodeYUV420SP(int[], byte[], int, int)}.
+     * @param yuv420sp the byte array of YUV240SP data.
+     * @param width the width of the camera preview.
+     * @param height the height of the camera preview.
+     * @param left the first column of the region.
+     * @param top the first row of the region.
+     * @param right the column after the last column of the region.
+     * @param bottom the row after the last row of the region.
+     * @param stride the distance between sampled pixels, in both directions; 1 samples every pixel.
+     * @return the mean red value of the sampled pixels, from 0 to 255.
+     */
+    public static double meanRed(@NonNull byte[] yuv420sp, int width, int height,
+                                 int left, int top, int right, int bottom, int stride) {
+        final int frameSize = width * height;
+        long sum = 0;
+        int count = 0;
+
+        for (int j = top; j < bottom; j += stride) {
+            int yRow = j * width;
+            int vRow = frameSize + (j >> 1) * width;
+            int i = left;
+            if (stride == 1) {
+                // pixel pairs share their V sample
+                if ((i & 1) != 0 && i < right) {
+                    sum += red(yuv420sp[yRow + i], 1634 * ((0xff & yuv420sp[vRow + i - 1]) - 128));
+                    i++;
+                }
+                for (; i + 1 < right; i += 2) {
+                    int v1634 = 1634 * ((0xff & yuv420sp[vRow + i]) - 128);
+                    sum += red(yuv420sp[yRow + i], v1634) + red(yuv420sp[yRow + i + 1], v1634);
+                }
+                if (i < right) {
+                    sum += red(yuv420sp[yRow + i], 1634 * ((0xff & yuv420sp[vRow + i]) - 128));
+                }
+                count += right - left;
+            } else {
+                for (; i < right; i += stride) {
+                    sum += red(yuv420sp[yRow + i], 1634 * ((0xff & yuv420sp[vRow + (i & ~1)]) - 128));
+                    count++;
+                }
+            }
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Computes the mean red value over a region of YUV_420_888 image data, e.g. from a camera2
+     * {@link android.media.Image}, sampling every stride-th pixel of every stride-th row.
+     * The values are read straight from the plane buffers, without copying them, and are
+     * those of {@link #decodeYUV420SP(int[], byte[], int, int)} for the same Y and V samples.
+     * @param yPlane the Y plane, one byte per pixel.
+     * @param yRowStride the distance between Y rows, in bytes.
+     * @param vPlane the V plane, subsampled by 2 in both directions.
+     * @param vRowStride the distance between V rows, in bytes.
+     * @param vPixelStride the distance between V samples within a row, in bytes.
+     * @param left the first column of the region.
+     * @param top the first row of the region.
+     * @param right the column after the last column of the region.
+     * @param bottom the row after the last row of the region.
+     * @param stride the distance between sampled pixels, in both directions; 1 samples every pixel.
+     * @return the mean red value of the sampled pixels, from 0 to 255.
+     */
+    public static double meanRed(@NonNull ByteBuffer yPlane, int yRowStride,
+                                 @NonNull ByteBuffer vPlane, int vRowStride, int vPixelStride,
+                                 int left, int top, int right, int bottom, int stride) {
+        long sum = 0;
+        int count = 0;
+
+        for (int j = top; j < bottom; j += stride) {
+            int yRow = j * yRowStride;
+            int vRow = (j >> 1) * vRowStride;
+            for (int i = left; i < right; i += stride) {
+                sum += red(yPlane.get(yRow + i), 1634 * ((0xff & vPlane.get(vRow + (i >> 1) * vPixelStride)) - 128));
+                count++;
+            }
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Computes the mean red, green and blue values of NV21 (YUV420SP) image data, exactly as
+     * if the image had been decoded by {@link #decodeYUV420SP(int[], byte[], int, int)} and
+     * each channel averaged, but without materializing the RGBA pixels.
+     * @param means receives the mean red, green and blue values, from 0 to 255.
+     * @param yuv420sp the byte array of YUV240SP data.
+     * @param width the width of the camera preview.
+     * @param height the height of the camera preview.
+     */
+    public static void meanRGB(@NonNull double[] means, @NonNull byte[] yuv420sp, int width, int height) {
+        final int frameSize = width * height;
+        long sumR = 0, sumG = 0, sumB = 0;
+
+        for (int j = 0, yp = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            for (int i = 0; i < width; i += 2, uvp += 2) {
+                int v = (0xff & yuv420sp[uvp]) - 128;
+                int u = (0xff & yuv420sp[uvp + 1]) - 128;
+                int rv = 1634 * v, guv = -833 * v - 400 * u, bu = 2066 * u;
+                for (int k = i, end = Math.min(i + 2, width); k < end; k++, yp++) {
+                    int y = (0xff & ((int) yuv420sp[yp])) - 16;
+                    int y1192 = y < 0 ? 0 : 1192 * y;
+                    sumR += clamp(y1192 + rv) >> 10;
+                    sumG += clamp(y1192 + guv) >> 10;
+                    sumB += clamp(y1192 + bu) >> 10;
+                }
+            }
+        }
+        means[0] = (double) sumR / frameSize;
+        means[1] = (double) sumG / frameSize;
+        means[2] = (double) sumB / frameSize;
+    }
+
+    /**
+     * @return the 8-bit red value of a pixel, as decoded by {@link #decodeYUV420SP(int[], byte[], int, int)}.
+     */
+    private static int red(byte luma, int v1634) {
+        int y = (0xff & ((int) luma)) - 16;
+        return clamp((y < 0 ? 0 : 1192 * y) + v1634) >> 10;
+    }
+
+    /**
+     * @return the value clamped to the 18-bit range of the fixed-point color channels.
+     */
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 262143 ? 262143 : value);
+    }
 }
@@ -1,5 +1,7 @@
 package cs.umass.edu.myactivitiestoolkit.util;
 
+import java.util.Arrays;
+
 /**
  * @author CS390MB
  */
@@ -10,8 +12,10 @@ public class Interpolator {
 
     /**
      * Linear interpolation on the given time-series. This only works for a one-dimensional
-     * data stream.
-     * @param timestamps the list of timestamps associated with the data.
+     * data stream. For continuous streams, use
+     * {@link cs.umass.edu.myactivitiestoolkit.processing.Resampler} instead, which does not
+     * need the whole series up front.
+     * @param timestamps the list of timestamps associated with the data, in increasing order.
      * @param data the list of data points.
      * @param nResampled the length of the interpolated series.
      * @return the interpolated data series, an array of doubles of length nResampled
@@ -19,26 +23,28 @@ public class Interpolator {
     public static double[] linearInterpolate(long[] timestamps, double[] data, int nResampled){
         int n = data.length;
         int k = 1;
-        int[] correctedTimestamps = new int[timestamps.length];
-        for (int i = 0; i < timestamps.length; i++){
-            correctedTimestamps[i] = (int)(timestamps[i] - timestamps[0]);
-        }
-        int timeElapsed = correctedTimestamps[n - 1] - correctedTimestamps[0];
+        // timestamps stay long: nanosecond sensor timestamps overflow an int within seconds
+        long start = timestamps[0];
+        long timeElapsed = timestamps[n - 1] - start;
         double interval = timeElapsed / ((double)nResampled);
         double[] interpolatedData = new double[nResampled];
+        if (n == 1) {
+            Arrays.fill(interpolatedData, data[0]);
+            return interpolatedData;
+        }
         for (int i = 0; i < interpolatedData.length; i++){
-            long deltaT = correctedTimestamps[k] - correctedTimestamps[k-1];
-            double s_i = interval * k;
+            double s_i = interval * i;
+            // advance to the segment [k-1, k] containing s_i before interpolating
+            while (k < n - 1 && s_i > timestamps[k] - start)
+                k++;
+            long deltaT = timestamps[k] - timestamps[k-1];
             if (deltaT == 0) {
                 interpolatedData[i]=data[k];
             }else {
-                double f1 = (s_i - correctedTimestamps[k - 1]) / deltaT;
-                double f2 = (correctedTimestamps[k] - s_i) / deltaT;
-                interpolatedData[i] = data[k - 1] * f1 + data[k] * f2;
+                double f = (s_i - (timestamps[k - 1] - start)) / deltaT;
+                interpolatedData[i] = data[k - 1] * (1 - f) + data[k] * f;
             }
-            while (s_i >= correctedTimestamps[k] && k < n-1)
-                k++;
         }
         return interpolatedData;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,154 @@
+package cs.umass.edu.myactivitiestoolkit.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free single-producer, single-consumer ring of timestamped samples, used to feed
+ * live sensor data from a service's sensor thread to the UI. The producer writes each
+ * sample without allocating, locking or dispatching anything, and the consumer drains
+ * everything written since its last drain, typically once per display frame, so UI work
+ * is bounded by the frame rate rather than the sensor rate.
+ * <br><br>
+ * The producer never waits: if the consumer falls behind, e.g. while the UI is not
+ * visible, the oldest samples are overwritten and only the most recent
+ * {@link #getCapacity()} samples are delivered by the next drain. The samples lost this
+ * way are counted by {@link #getDroppedCount()}.
+ */
+public class SampleRing {
+
+    private final int channels;
+
+    private final int mask;
+
+    private final long[] timestamps;
+
+    /** Sample values, interleaved by channel. */
+    private final float[] values;
+
+    /** The number of samples ever written; published by the producer after each write. */
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    /** The sequence number of the next sample to drain; owned by the consumer. */
+    private long readSequence;
+
+    /** The number of samples overwritten before they were drained; owned by the consumer. */
+    private long droppedCount;
+
+    /**
+     * Creates an empty ring.
+     * @param capacity the number of samples held, rounded up to a power of two.
+     * @param channels the number of values per sample.
+     */
+    public SampleRing(int capacity, int channels) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.channels = channels;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.values = new float[size * channels];
+    }
+
+    /**
+     * @return the maximum number of samples returned by a single drain.
+     */
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * @return the number of values per sample.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Writes a single-channel sample. Must only be called from the producer thread.
+     * @param timestamp the sample timestamp.
+     * @param value the sample value.
+     */
+    public void write(long timestamp, float value) {
+        long sequence = writeSequence.get();
+        int slot = (int) sequence & mask;
+        timestamps[slot] = timestamp;
+        values[slot * channels] = value;
+        writeSequence.lazySet(sequence + 1);
+    }
+
+    /**
+     * Writes a three-channel sample. Must only be called from the producer thread.
+     * @param timestamp the sample timestamp.
+     * @param x the first value.
+     * @param y the second value.
+     * @param z the third value.
+     */
+    public void write(long timestamp, float x, float y, float z) {
+        long sequence = writeSequence.get();
+        int slot = (int) sequence & mask;
+        int index = slot * channels;
+        timestamps[slot] = timestamp;
+        values[index] = x;
+        values[index + 1] = y;
+        values[index + 2] = z;
+        writeSequence.lazySet(sequence + 1);
+    }
+
+    /**
+     * Writes a sample. Must only be called from the producer thread.
+     * @param timestamp the sample timestamp.
+     * @param sample the value of each channel.
+     */
+    public void write(long timestamp, float[] sample) {
+        long sequence = writeSequence.get();
+        int slot = (int) sequence & mask;
+        timestamps[slot] = timestamp;
+        System.arraycopy(sample, 0, values, slot * channels, channels);
+        writeSequence.lazySet(sequence + 1);
+    }
+
+    /**
+     * Copies the samples written since the last drain, oldest first. Must only be called
+     * from the consumer thread.
+     * @param outTimestamps receives the timestamps; must hold {@link #getCapacity()} entries.
+     * @param outValues receives the values, interleaved by channel; must hold
+     *                  {@link #getCapacity()} * {@link #getChannels()} entries.
+     * @return the number of samples copied.
+     */
+    public int drain(long[] outTimestamps, float[] outValues) {
+        long end = writeSequence.get();
+        long start = Math.max(readSequence, end - timestamps.length);
+        droppedCount += start - readSequence;
+        int count = (int) (end - start);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (start + i) & mask;
+            outTimestamps[i] = timestamps[slot];
+            System.arraycopy(values, slot * channels, outValues, i * channels, channels);
+        }
+        readSequence = end;
+
+        // samples the producer may have overwritten while they were being copied are dropped
+        long firstIntact = writeSequence.get() - timestamps.length + 1;
+        int torn = (int) Math.min(count, Math.max(0, firstIntact - start));
+        if (torn > 0) {
+            droppedCount += torn;
+            count -= torn;
+            System.arraycopy(outTimestamps, torn, outTimestamps, 0, count);
+            System.arraycopy(outValues, torn * channels, outValues, 0, count * channels);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of samples overwritten by the producer before they could be
+     *         drained. Must only be called from the consumer thread.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Discards all unread samples. Must only be called from the consumer thread.
+     */
+    public void skip() {
+        readSequence = writeSequence.get();
+    }
+}
@@ -0,0 +1,103 @@
+package cs.umass.edu.myactivitiestoolkit.util;
+
+/**
+ * A fixed-capacity batch of three-axis sensor samples, stored as parallel primitive arrays
+ * so a burst of events drained from the sensor hardware FIFO can be buffered and handed
+ * to processing and upload code at once, without allocating per event.
+ */
+public class SensorBatch {
+
+    private final long[] timestamps;
+
+    private final float[] x, y, z;
+
+    private int size;
+
+    /**
+     * Creates an empty batch.
+     * @param capacity the maximum number of samples.
+     */
+    public SensorBatch(int capacity) {
+        timestamps = new long[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+    }
+
+    /**
+     * Appends a sample. The batch must not be full.
+     * @param timestamp the sample timestamp.
+     * @param values the x, y and z values.
+     */
+    public void add(long timestamp, float[] values) {
+        timestamps[size] = timestamp;
+        x[size] = values[0];
+        y[size] = values[1];
+        z[size] = values[2];
+        size++;
+    }
+
+    /**
+     * Appends a sample. The batch must not be full.
+     * @param timestamp the sample timestamp.
+     * @param x the x value.
+     * @param y the y value.
+     * @param z the z value.
+     */
+    public void add(long timestamp, float x, float y, float z) {
+        timestamps[size] = timestamp;
+        this.x[size] = x;
+        this.y[size] = y;
+        this.z[size] = z;
+        size++;
+    }
+
+    /**
+     * Empties the batch. The arrays are reused.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the number of samples in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more samples can be added.
+     */
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    /**
+     * @return the timestamps; only the first {@link #size()} entries are valid.
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return the x values; only the first {@link #size()} entries are valid.
+     */
+    public float[] getX() {
+        return x;
+    }
+
+    /**
+     * @return the y values; only the first {@link #size()} entries are valid.
+     */
+    public float[] getY() {
+        return y;
+    }
+
+    /**
+     * @return the z values; only the first {@link #size()} entries are valid.
+     */
+    public float[] getZ() {
+        return z;
+    }
+}
@@ -201,7 +201,8 @@ public class AudioFragment extends Fragment {
 
     /**
      * Converts the spectrogram values into a heat map and projects the pixels onto a bitmap.
-     * @param spectrogram the spectrogram values as a 2D array.
+     * @param spectrogram the spectrogram values as a 2D array, one column of non-redundant
+     *                    frequency bins (DC to Nyquist) per frame.
      */
     private void updateSpectrogram(double[][] spectrogram){
         int width = spectrogram.length;
@@ -221,7 +222,7 @@ public class AudioFragment extends Fragment {
             }
         }
         int counter = 0;
-        for (int j = 0; j < height/2; j++) {
+        for (int j = 0; j < height; j++) {
             for (double[] row : spectrogram) {
                 rgbValues[counter++] = heatMap(min, max, row[j]);
             }
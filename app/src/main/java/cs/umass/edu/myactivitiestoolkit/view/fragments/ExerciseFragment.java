@@ -9,6 +9,7 @@ import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.view.Choreographer;
 import androidx.annotation.NonNull;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.view.LayoutInflater;
@@ -21,25 +22,21 @@ import android.widget.TextView;
 import com.androidplot.util.PixelUtils;
 import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.LineAndPointFormatter;
-import com.androidplot.xy.SimpleXYSeries;
 import com.androidplot.xy.StepMode;
 import com.androidplot.xy.XYGraphWidget;
 import com.androidplot.xy.XYPlot;
-import com.androidplot.xy.XYSeries;
 
 import java.text.FieldPosition;
 import java.text.Format;
 import java.text.ParsePosition;
-import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.Locale;
-import java.util.Queue;
 
 import cs.umass.edu.myactivitiestoolkit.R;
 import cs.umass.edu.myactivitiestoolkit.constants.Constants;
 import cs.umass.edu.myactivitiestoolkit.services.msband.BandService;
 import cs.umass.edu.myactivitiestoolkit.services.AccelerometerService;
 import cs.umass.edu.myactivitiestoolkit.services.ServiceManager;
+import cs.umass.edu.myactivitiestoolkit.view.plot.RingXYSeries;
 
 /**
  * Fragment which visualizes the 3-axis accelerometer signal, displays the step count estimates and
@@ -114,45 +111,52 @@ public class ExerciseFragment extends Fragment {
     /** The series formatter that defines how the peaks should be displayed. **/
     private LineAndPointFormatter mPeakSeriesFormatter;
 
-    /** The number of data points to display in the graph. **/
-    private static final int GRAPH_CAPACITY = 100;
+    /** The number of data points to display in the graph, 10 seconds at the accelerometer rate. **/
+    private static final int GRAPH_CAPACITY = 500;
 
-    /** The number of points displayed on the plot. This should only ever be less than
-     * {@link #GRAPH_CAPACITY} before the plot is fully populated. **/
-    private int mNumberOfPoints = 0;
+    /** The maximum number of peaks displayed at once. **/
+    private static final int PEAK_CAPACITY = 64;
 
     /**
-     * The queue of timestamps.
+     * The accelerometer values along the x-axis.
      */
-    private final Queue<Number> mTimestamps = new LinkedList<>();
+    private final RingXYSeries mXSeries = new RingXYSeries("X", GRAPH_CAPACITY);
 
     /**
-     * The queue of accelerometer values along the x-axis.
+     * The accelerometer values along the y-axis.
      */
-    private final Queue<Number> mXValues = new LinkedList<>();
+    private final RingXYSeries mYSeries = new RingXYSeries("Y", GRAPH_CAPACITY);
 
     /**
-     * The queue of accelerometer values along the y-axis.
+     * The accelerometer values along the z-axis.
      */
-    private final Queue<Number> mYValues = new LinkedList<>();
+    private final RingXYSeries mZSeries = new RingXYSeries("Z", GRAPH_CAPACITY);
 
     /**
-     * The queue of accelerometer values along the z-axis.
+     * The peaks, placed on the z-axis signal.
      */
-    private final Queue<Number> mZValues = new LinkedList<>();
+    private final RingXYSeries mPeakSeries = new RingXYSeries("PEAKS", PEAK_CAPACITY);
 
-    /**
-     * The queue of peak timestamps.
-     */
-    private final Queue<Number> mPeakTimestamps = new LinkedList<>();
+    /** Reference to the service manager which communicates to the {@link AccelerometerService}. **/
+    private ServiceManager mServiceManager;
+
+    /** Receives the timestamps drained from the {@link AccelerometerService} feeds each frame. **/
+    private final long[] mDrainedTimestamps = new long[AccelerometerService.READINGS_FEED.getCapacity()];
+
+    /** Receives the x, y and z values drained from the {@link AccelerometerService} feeds each frame. **/
+    private final float[] mDrainedValues = new float[3 * AccelerometerService.READINGS_FEED.getCapacity()];
 
     /**
-     * The queue of peak values.
+     * Drains the accelerometer readings and steps published since the previous frame and
+     * redraws the plot at most once per frame, no matter how fast the sensor delivers.
      */
-    private final Queue<Number> mPeakValues = new LinkedList<>();
-
-    /** Reference to the service manager which communicates to the {@link AccelerometerService}. **/
-    private ServiceManager mServiceManager;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drainFeeds();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
 
     /**
      * The receiver listens for messages from the {@link AccelerometerService}, e.g. was the
@@ -176,42 +180,12 @@ public class ExerciseFragment extends Fragment {
                     } else if (message == Constants.MESSAGE.BAND_SERVICE_STOPPED){
                         switchAccelerometer.setChecked(false);
                     }
-                } else if (intent.getAction().equals(Constants.ACTION.BROADCAST_ACCELEROMETER_DATA)) {
-                    long timestamp = intent.getLongExtra(Constants.KEY.TIMESTAMP, -1);
-                    float[] accelerometerValues = intent.getFloatArrayExtra(Constants.KEY.ACCELEROMETER_DATA);
-                    displayAccelerometerReading(accelerometerValues[0], accelerometerValues[1], accelerometerValues[2]);
-
-                    mTimestamps.add(timestamp);
-                    mXValues.add(accelerometerValues[0]);
-                    mYValues.add(accelerometerValues[1]);
-                    mZValues.add(accelerometerValues[2]);
-                    if (mNumberOfPoints >= GRAPH_CAPACITY) {
-                        mTimestamps.poll();
-                        mXValues.poll();
-                        mYValues.poll();
-                        mZValues.poll();
-                        while (mPeakTimestamps.size() > 0 && (mPeakTimestamps.peek().longValue() < mTimestamps.peek().longValue())){
-                            mPeakTimestamps.poll();
-                            mPeakValues.poll();
-                        }
-                    }
-                    else
-                        mNumberOfPoints++;
-
-                    updatePlot();
                 } else if (intent.getAction().equals(Constants.ACTION.BROADCAST_ANDROID_STEP_COUNT)) {
                     int stepCount = intent.getIntExtra(Constants.KEY.STEP_COUNT, 0);
                     displayAndroidStepCount(stepCount);
                 } else if (intent.getAction().equals(Constants.ACTION.BROADCAST_LOCAL_STEP_COUNT)) {
                     int stepCount = intent.getIntExtra(Constants.KEY.STEP_COUNT, 0);
                     displayLocalStepCount(stepCount);
-                } else if (intent.getAction().equals(Constants.ACTION.BROADCAST_ACCELEROMETER_PEAK)){
-                    long timestamp = intent.getLongExtra(Constants.KEY.ACCELEROMETER_PEAK_TIMESTAMP, -1);
-                    float[] values = intent.getFloatArrayExtra(Constants.KEY.ACCELEROMETER_PEAK_VALUE);
-                    if (timestamp > 0) {
-                        mPeakTimestamps.add(timestamp);
-                        mPeakValues.add(values[2]); //place on z-axis signal
-                    }
                 }
             }
         }
@@ -294,6 +268,11 @@ public class ExerciseFragment extends Fragment {
         mPeakSeriesFormatter = new LineAndPointFormatter(null, Color.BLUE, null, null);
         mPeakSeriesFormatter.getVertexPaint().setStrokeWidth(PixelUtils.dpToPix(10)); //enlarge the peak points
 
+        mPlot.addSeries(mXSeries, mXSeriesFormatter);
+        mPlot.addSeries(mYSeries, mYSeriesFormatter);
+        mPlot.addSeries(mZSeries, mZSeriesFormatter);
+        mPlot.addSeries(mPeakSeries, mPeakSeriesFormatter);
+
         return view;
     }
 
@@ -302,13 +281,10 @@ public class ExerciseFragment extends Fragment {
      * {@link AccelerometerService}. The intent filter defines messages we are interested in receiving.
      * <br><br>
      *
-     * We would like to receive sensor data, so we specify {@link Constants.ACTION#BROADCAST_ACCELEROMETER_DATA}.
-     * We would also like to receive step count updates, so include {@link Constants.ACTION#BROADCAST_ANDROID_STEP_COUNT}
-     * and {@link Constants.ACTION#BROADCAST_LOCAL_STEP_COUNT}.
-     * <br><br>
-     *
-     * To optionally display the peak values you compute, include
-     * {@link Constants.ACTION#BROADCAST_ACCELEROMETER_PEAK}.
+     * We would like to receive step count updates, so include {@link Constants.ACTION#BROADCAST_ANDROID_STEP_COUNT}
+     * and {@link Constants.ACTION#BROADCAST_LOCAL_STEP_COUNT}. Sensor data and detected steps are
+     * not broadcast; they are drained from {@link AccelerometerService#READINGS_FEED} and
+     * {@link AccelerometerService#STEPS_FEED} once per frame by {@link #mFrameCallback}.
      * <br><br>
      *
      * Lastly to update the state of the accelerometer switch properly, we listen for additional
@@ -326,11 +302,14 @@ public class ExerciseFragment extends Fragment {
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getActivity());
         IntentFilter filter = new IntentFilter();
         filter.addAction(Constants.ACTION.BROADCAST_MESSAGE);
-        filter.addAction(Constants.ACTION.BROADCAST_ACCELEROMETER_DATA);
-        filter.addAction(Constants.ACTION.BROADCAST_ACCELEROMETER_PEAK);
         filter.addAction(Constants.ACTION.BROADCAST_ANDROID_STEP_COUNT);
         filter.addAction(Constants.ACTION.BROADCAST_LOCAL_STEP_COUNT);
         broadcastManager.registerReceiver(receiver, filter);
+
+        // samples written while the fragment was stopped are stale
+        AccelerometerService.READINGS_FEED.skip();
+        AccelerometerService.STEPS_FEED.skip();
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
     }
 
     /**
@@ -339,6 +318,7 @@ public class ExerciseFragment extends Fragment {
      */
     @Override
     public void onStop() {
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getActivity());
         try {
             broadcastManager.unregisterReceiver(receiver);
@@ -348,6 +328,37 @@ public class ExerciseFragment extends Fragment {
         super.onStop();
     }
 
+    /**
+     * Moves the readings and steps published since the previous frame into the plot data
+     * and redraws the plot once if anything arrived.
+     */
+    private void drainFeeds(){
+        int steps = AccelerometerService.STEPS_FEED.drain(mDrainedTimestamps, mDrainedValues);
+        for (int i = 0; i < steps; i++) {
+            if (mDrainedTimestamps[i] > 0) {
+                mPeakSeries.add(mDrainedTimestamps[i], mDrainedValues[3 * i + 2]); //place on z-axis signal
+            }
+        }
+
+        int count = AccelerometerService.READINGS_FEED.drain(mDrainedTimestamps, mDrainedValues);
+        if (count == 0) {
+            if (steps > 0)
+                updatePlot();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            long timestamp = mDrainedTimestamps[i];
+            mXSeries.add(timestamp, mDrainedValues[3 * i]);
+            mYSeries.add(timestamp, mDrainedValues[3 * i + 1]);
+            mZSeries.add(timestamp, mDrainedValues[3 * i + 2]);
+        }
+        mPeakSeries.removeBefore(mXSeries.getFirstX());
+
+        int last = 3 * (count - 1);
+        displayAccelerometerReading(mDrainedValues[last], mDrainedValues[last + 1], mDrainedValues[last + 2]);
+        updatePlot();
+    }
+
     /**
      * Displays the accelerometer reading on the UI.
      * @param x acceleration along the x-axis
@@ -394,31 +405,17 @@ public class ExerciseFragment extends Fragment {
      * Clears the x, y, z and peak plot data series.
      */
     private void clearPlotData(){
-        mPeakTimestamps.clear();
-        mPeakValues.clear();
-        mTimestamps.clear();
-        mXValues.clear();
-        mYValues.clear();
-        mZValues.clear();
-        mNumberOfPoints = 0;
+        mPeakSeries.clear();
+        mXSeries.clear();
+        mYSeries.clear();
+        mZSeries.clear();
     }
 
     /**
-     * Updates and redraws the accelerometer plot, along with the peaks detected.
+     * Redraws the accelerometer plot, along with the peaks detected. The plot reads the
+     * series directly, so nothing needs to be copied.
      */
     private void updatePlot(){
-        XYSeries xSeries = new SimpleXYSeries(new ArrayList<>(mTimestamps), new ArrayList<>(mXValues), "X");
-        XYSeries ySeries = new SimpleXYSeries(new ArrayList<>(mTimestamps), new ArrayList<>(mYValues), "Y");
-        XYSeries zSeries = new SimpleXYSeries(new ArrayList<>(mTimestamps), new ArrayList<>(mZValues), "Z");
-
-        XYSeries peaks = new SimpleXYSeries(new ArrayList<>(mPeakTimestamps), new ArrayList<>(mPeakValues), "PEAKS");
-
-        //redraw the plot:
-        mPlot.clear();
-        mPlot.addSeries(xSeries, mXSeriesFormatter);
-        mPlot.addSeries(ySeries, mYSeriesFormatter);
-        mPlot.addSeries(zSeries, mZSeriesFormatter);
-        mPlot.addSeries(peaks, mPeakSeriesFormatter);
         mPlot.redraw();
     }
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ import androidx.legacy.app.FragmentCompat;
 import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -30,26 +31,23 @@ import android.widget.Toast;
 import com.androidplot.util.PixelUtils;
 import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.LineAndPointFormatter;
-import com.androidplot.xy.SimpleXYSeries;
 import com.androidplot.xy.StepMode;
 import com.androidplot.xy.XYGraphWidget;
 import com.androidplot.xy.XYPlot;
-import com.androidplot.xy.XYSeries;
 
 import java.text.FieldPosition;
 import java.text.Format;
 import java.text.ParsePosition;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 
 import cs.umass.edu.myactivitiestoolkit.R;
 import cs.umass.edu.myactivitiestoolkit.constants.Constants;
 import cs.umass.edu.myactivitiestoolkit.services.PPGService;
 import cs.umass.edu.myactivitiestoolkit.services.ServiceManager;
 import cs.umass.edu.myactivitiestoolkit.util.PermissionsUtil;
+import cs.umass.edu.myactivitiestoolkit.view.plot.RingXYSeries;
 
 /**
  * Fragment which visualizes the PPG signal, displays the current heart rate measurement
@@ -110,33 +108,42 @@ public class HeartRateFragment extends Fragment {
      * mean red value is 255. **/
     private static final int PPG_UPPER_BOUND = 255;
 
-    /** The number of data points to display in the graph. **/
-    private static final int GRAPH_CAPACITY = 100;
+    /** The number of data points to display in the graph, 10 seconds at the camera frame rate. **/
+    private static final int GRAPH_CAPACITY = 300;
 
-    /** The number of points displayed on the plot. This should only ever be less than
-     * {@link #GRAPH_CAPACITY} before the plot is fully populated. **/
-    private int numberOfPoints = 0;
+    /** The maximum number of peaks displayed at once. **/
+    private static final int PEAK_CAPACITY = 64;
 
     /**
-     * The queue of the previous {@link #GRAPH_CAPACITY} PPG timestamps.
+     * The previous {@link #GRAPH_CAPACITY} PPG values.
      */
-    private final Queue<Number> ppgTimestamps = new LinkedList<>();
+    private final RingXYSeries ppgSeries = new RingXYSeries("PPG", GRAPH_CAPACITY);
     /**
-     * The queue of the previous {@link #GRAPH_CAPACITY} PPG values.
+     * The peaks.
      */
-    private final Queue<Number> ppgValues = new LinkedList<>();
-    /**
-     * The queue of peak timestamps.
-     */
-    private final Queue<Number> peakTimestamps = new LinkedList<>();
-    /**
-     * The queue of peak values.
-     */
-    private final Queue<Number> peakValues = new LinkedList<>();
+    private final RingXYSeries peakSeries = new RingXYSeries("PPG_PEAKS", PEAK_CAPACITY);
 
     /** Reference to the service manager which communicates to the {@link PPGService}. **/
     private ServiceManager serviceManager;
 
+    /** Receives the timestamps drained from the {@link PPGService} feeds each frame. **/
+    private final long[] drainedTimestamps = new long[PPGService.READINGS_FEED.getCapacity()];
+
+    /** Receives the values drained from the {@link PPGService} feeds each frame. **/
+    private final float[] drainedValues = new float[PPGService.READINGS_FEED.getCapacity()];
+
+    /**
+     * Drains the PPG readings and peaks published since the previous frame and redraws
+     * the plot at most once per frame.
+     */
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drainFeeds();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
     /**
      * The receiver listens for sensor data from the {@link PPGService}. This includes
      * the raw PPG sensor data as well as peaks detected by your algorithm and the
@@ -155,32 +162,6 @@ public class HeartRateFragment extends Fragment {
                     int heartRate = intent.getIntExtra(Constants.KEY.HEART_RATE, -1);
                     if (heartRate != -1)
                         displayHeartRate(heartRate);
-                } else if (intent.getAction().equals(Constants.ACTION.BROADCAST_PPG)){
-                    long timestamp = intent.getLongExtra(Constants.KEY.TIMESTAMP, -1);
-                    double ppg = intent.getDoubleExtra(Constants.KEY.PPG_DATA, -1);
-
-                    ppgTimestamps.add(timestamp);
-                    ppgValues.add(ppg);
-                    if (numberOfPoints >= GRAPH_CAPACITY) {
-                        ppgTimestamps.poll();
-                        ppgValues.poll();
-                        while (peakTimestamps.size() > 0 && (peakTimestamps.peek().longValue() < ppgTimestamps.peek().longValue())){
-                            peakTimestamps.poll();
-                            peakValues.poll();
-                        }
-                    }
-                    else
-                        numberOfPoints++;
-
-                    updatePlot();
-
-                } else if (intent.getAction().equals(Constants.ACTION.BROADCAST_PPG_PEAK)){
-                    long timestamp = intent.getLongExtra(Constants.KEY.PPG_PEAK_TIMESTAMP, -1);
-                    double value = intent.getDoubleExtra(Constants.KEY.PPG_PEAK_VALUE, -1);
-                    if (timestamp > 0) {
-                        peakTimestamps.add(timestamp);
-                        peakValues.add(value);
-                    }
                 }
             }
         }
@@ -243,6 +224,9 @@ public class HeartRateFragment extends Fragment {
         peakSeriesFormatter = new LineAndPointFormatter(null, Color.BLUE, null, null);
         peakSeriesFormatter.getVertexPaint().setStrokeWidth(PixelUtils.dpToPix(10)); //enlarge the peak points
 
+        plot.addSeries(ppgSeries, ppgSeriesFormatter);
+        plot.addSeries(peakSeries, peakSeriesFormatter);
+
         return view;
     }
 
@@ -251,12 +235,9 @@ public class HeartRateFragment extends Fragment {
      * {@link PPGService}. The intent filter defines messages we are interested in receiving.
      * <br><br>
      *
-     * We would like to receive sensor data, so we specify {@link Constants.ACTION#BROADCAST_PPG}.
-     * We would also like to receive heart rate estimates, so include {@link Constants.ACTION#BROADCAST_HEART_RATE}.
-     * <br><br>
-     *
-     * To optionally display the peak values you compute, include
-     * {@link Constants.ACTION#BROADCAST_PPG_PEAK}.
+     * We would like to receive heart rate estimates, so include {@link Constants.ACTION#BROADCAST_HEART_RATE}.
+     * Sensor data and peaks are not broadcast; they are drained from {@link PPGService#READINGS_FEED}
+     * and {@link PPGService#PEAKS_FEED} once per frame by {@link #frameCallback}.
      * <br><br>
      *
      * Lastly to update the state of the PPG switch properly, we listen for additional
@@ -274,10 +255,13 @@ public class HeartRateFragment extends Fragment {
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getActivity());
         IntentFilter filter = new IntentFilter();
         filter.addAction(Constants.ACTION.BROADCAST_MESSAGE);
-        filter.addAction(Constants.ACTION.BROADCAST_PPG);
         filter.addAction(Constants.ACTION.BROADCAST_HEART_RATE);
-        filter.addAction(Constants.ACTION.BROADCAST_PPG_PEAK);
         broadcastManager.registerReceiver(receiver, filter);
+
+        // samples written while the fragment was stopped are stale
+        PPGService.READINGS_FEED.skip();
+        PPGService.PEAKS_FEED.skip();
+        Choreographer.getInstance().postFrameCallback(frameCallback);
     }
 
     /**
@@ -286,6 +270,7 @@ public class HeartRateFragment extends Fragment {
      */
     @Override
     public void onStop() {
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getActivity());
         try {
             broadcastManager.unregisterReceiver(receiver);
@@ -322,10 +307,14 @@ public class HeartRateFragment extends Fragment {
 
     /**
      * Check the draw overlay permission. This is required to run the video recording service in
-     * a background service.
+     * a background service, unless it uses the camera2 API, which needs no overlay window.
      */
     @TargetApi(Build.VERSION_CODES.M)
     private void checkDrawOverlayPermission() {
+        if (PPGService.usesCamera2(getActivity())) {
+            onVideoPermissionsGranted();
+            return;
+        }
         /** check if we already  have permission to draw over other apps */
         if (!Settings.canDrawOverlays(getContext().getApplicationContext())) {
             /** if not, construct intent to request permission */
@@ -397,28 +386,44 @@ public class HeartRateFragment extends Fragment {
         });
     }
 
+    /**
+     * Moves the readings and peaks published since the previous frame into the plot data
+     * and redraws the plot once if anything arrived.
+     */
+    private void drainFeeds(){
+        int peaks = PPGService.PEAKS_FEED.drain(drainedTimestamps, drainedValues);
+        for (int i = 0; i < peaks; i++) {
+            if (drainedTimestamps[i] > 0) {
+                peakSeries.add(drainedTimestamps[i], drainedValues[i]);
+            }
+        }
+
+        int count = PPGService.READINGS_FEED.drain(drainedTimestamps, drainedValues);
+        if (count == 0) {
+            if (peaks > 0)
+                updatePlot();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            ppgSeries.add(drainedTimestamps[i], drainedValues[i]);
+        }
+        peakSeries.removeBefore(ppgSeries.getFirstX());
+        updatePlot();
+    }
+
     /**
      * Clears the PPG and peak plot data series.
      */
     private void clearPlotData(){
-        peakTimestamps.clear();
-        peakValues.clear();
-        ppgTimestamps.clear();
-        ppgValues.clear();
-        numberOfPoints = 0;
+        peakSeries.clear();
+        ppgSeries.clear();
     }
 
     /**
-     * Updates and redraws the PPG plot, along with peaks detected.
+     * Redraws the PPG plot, along with peaks detected. The plot reads the series directly,
+     * so nothing needs to be copied.
      */
     private void updatePlot(){
-        XYSeries series1 = new SimpleXYSeries(new ArrayList<>(ppgTimestamps), new ArrayList<>(ppgValues), "PPG");
-        XYSeries peaks = new SimpleXYSeries(new ArrayList<>(peakTimestamps), new ArrayList<>(peakValues), "PPG_PEAKS");
-
-        //redraw the plot:
-        plot.clear();
-        plot.addSeries(series1, ppgSeriesFormatter);
-        plot.addSeries(peaks, peakSeriesFormatter);
         plot.redraw();
     }
 }
\ No newline at end of file
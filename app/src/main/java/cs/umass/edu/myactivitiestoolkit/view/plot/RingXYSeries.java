@@ -0,0 +1,109 @@
+package cs.umass.edu.myactivitiestoolkit.view.plot;
+
+import com.androidplot.xy.XYSeries;
+
+/**
+ * An {@link XYSeries} backed by fixed-capacity primitive ring buffers, for live plots.
+ * Adding a point is O(1) and allocates nothing; once the series is full, each new point
+ * replaces the oldest one. The plot reads the points directly from the rings, so the
+ * series is added to the plot once and only {@link com.androidplot.xy.XYPlot#redraw()}
+ * is needed after new points arrive. Not thread-safe: use it only on the UI thread.
+ */
+public class RingXYSeries implements XYSeries {
+
+    private final String title;
+
+    private final long[] xValues;
+
+    private final float[] yValues;
+
+    /** The index of the oldest point. */
+    private int start;
+
+    private int size;
+
+    /**
+     * Creates an empty series.
+     * @param title the series title, shown in the legend.
+     * @param capacity the maximum number of points.
+     */
+    public RingXYSeries(String title, int capacity) {
+        this.title = title;
+        this.xValues = new long[capacity];
+        this.yValues = new float[capacity];
+    }
+
+    /**
+     * Appends a point, replacing the oldest one if the series is full.
+     * @param x the x value, e.g. a timestamp.
+     * @param y the y value.
+     */
+    public void add(long x, float y) {
+        int capacity = xValues.length;
+        int end = start + size;
+        if (end >= capacity) {
+            end -= capacity;
+        }
+        xValues[end] = x;
+        yValues[end] = y;
+        if (size < capacity) {
+            size++;
+        } else if (++start == capacity) {
+            start = 0;
+        }
+    }
+
+    /**
+     * Removes the oldest points while their x value is less than the given value, e.g.
+     * to drop peaks that have scrolled off the plot.
+     * @param x the smallest x value to keep.
+     */
+    public void removeBefore(long x) {
+        while (size > 0 && xValues[start] < x) {
+            if (++start == xValues.length) {
+                start = 0;
+            }
+            size--;
+        }
+    }
+
+    /**
+     * Removes all points.
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    /**
+     * @return the x value of the oldest point. The series must not be empty.
+     */
+    public long getFirstX() {
+        return xValues[start];
+    }
+
+    private int index(int i) {
+        int index = start + i;
+        return index >= xValues.length ? index - xValues.length : index;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Number getX(int index) {
+        return xValues[index(index)];
+    }
+
+    @Override
+    public Number getY(int index) {
+        return yValues[index(index)];
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+}
@@ -17,6 +17,8 @@ import socket
 import sys
 import json
 
+import codec
+
 msg_request_id = "ID"
 msg_authenticate = "ID,{}\n"
 msg_acknowledge_id = "ACK"
@@ -100,7 +102,18 @@ class Client():
                             continue
                         previous_json = '' # reset if all were successful
                         sensor_type = data['sensor_type']
-                        if sensor_type in self.function_mapping:
+                        if sensor_type == "SENSOR_ENCODING_OFFER":
+                            # the phone sends JSON until we accept the binary encoding, and
+                            # always for the types the web visualizer plots
+                            if codec.BINARY in data['data']['encodings']:
+                                self.send_notification("ENCODING_ACCEPTED", {'encoding' : codec.BINARY})
+                            continue
+                        if codec.is_binary(data['data']):
+                            data['data'] = codec.decode_reading(sensor_type, data['data'])
+                        if sensor_type == "SENSOR_ACCEL_WINDOW":
+                            # a window of accelerometer readings: unpack it into individual samples
+                            self._dispatch_accel_window(data['data'])
+                        elif sensor_type in self.function_mapping:
                             for f in self.function_mapping[sensor_type]:
                                 f(data['data'], self.send_notification)
                         
@@ -133,6 +146,19 @@ class Client():
             if self.disconnect_callback != None:
                 self.disconnect_callback()
         
+    def _dispatch_accel_window(self, window):
+        """
+        Passes each sample of a "SENSOR_ACCEL_WINDOW" reading to the functions mapped 
+        to "SENSOR_ACCEL", in the same format as a single accelerometer reading.
+        """
+        if "SENSOR_ACCEL" not in self.function_mapping:
+            return
+        functions = self.function_mapping["SENSOR_ACCEL"]
+        for t, x, y, z in zip(window['timestamps'], window['x'], window['y'], window['z']):
+            sample = {'t' : t, 'x' : x, 'y' : y, 'z' : z}
+            for f in functions:
+                f(sample, self.send_notification)
+
     def _authenticate(self, sock):
         """
         Authenticates the user by performing a handshake with the data collection server.
@@ -0,0 +1,192 @@
+# -*- coding: utf-8 -*-
+"""
+Decoder for the binary encoding of sensor readings.
+
+Once the server accepts the binary encoding offered by the phone, readings
+arrive with data of the form {'t': ..., 'encoding': 'binary-v1', 'payload': ...},
+where payload is a Base64 encoded frame: a version byte, the varint length
+of the payload and the payload itself. Integers in the payload are LEB128
+varints, signed values are zig-zag encoded and sample arrays are raw
+little-endian primitives. Audio
+is sent as blocks that may be compressed, see decode_audio_block().
+
+decode_reading() turns such data back into exactly the dictionary the JSON
+encoding would have produced, so analytics functions see no difference.
+
+The server relays the stream to every consumer, including the web visualizer,
+which only reads JSON. The phone therefore always sends the types it plots
+(SENSOR_PPG, SENSOR_HR and SENSOR_ACCEL_WINDOW) as JSON; only audio and
+clustering requests are ever binary encoded.
+
+"""
+
+import base64
+import struct
+
+BINARY = "binary-v1"
+
+FORMAT_VERSION = 1
+
+class _Reader():
+
+    def __init__(self, frame):
+        self.frame = frame
+        self.bytes = bytearray(frame)
+        self.position = 0
+
+    def var_long(self):
+        result = 0
+        shift = 0
+        while True:
+            b = self.bytes[self.position]
+            self.position += 1
+            result |= (b & 0x7F) << shift
+            if b < 0x80:
+                return result
+            shift += 7
+
+    def signed_var_long(self):
+        value = self.var_long()
+        return (value >> 1) ^ -(value & 1)
+
+    def string(self):
+        length = self.var_long()
+        value = self.frame[self.position:self.position + length].decode('utf-8')
+        self.position += length
+        return value
+
+    def array(self, code, size, count):
+        values = list(struct.unpack_from('<{}{}'.format(count, code), self.frame, self.position))
+        self.position += size * count
+        return values
+
+
+PCM, DELTA_RICE, IMA_ADPCM = 0, 1, 2
+
+PARTITION_SIZE = 256
+RICE_ESCAPE = 24
+MAX_RICE_PARAMETER = 17
+
+STEP_SIZES = [
+    7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+    50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+    253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+    1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+    3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+    12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767]
+
+INDEX_ADJUSTMENTS = [-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8]
+
+class _BitReader():
+
+    def __init__(self, reader):
+        self.reader = reader
+        self.bits = 0
+        self.bit_count = 0
+
+    def read(self, count):
+        while self.bit_count < count:
+            self.bits = (self.bits << 8) | self.reader.bytes[self.reader.position]
+            self.reader.position += 1
+            self.bit_count += 8
+        self.bit_count -= count
+        value = (self.bits >> self.bit_count) & ((1 << count) - 1)
+        self.bits &= (1 << self.bit_count) - 1
+        return value
+
+def _decode_delta_rice(reader, count):
+    previous = reader.signed_var_long()
+    bits = _BitReader(reader)
+    values = []
+    for start in range(0, count, PARTITION_SIZE):
+        k = bits.read(5)
+        for _ in range(min(PARTITION_SIZE, count - start)):
+            quotient = 0
+            while quotient < RICE_ESCAPE and bits.read(1) == 1:
+                quotient += 1
+            if quotient < RICE_ESCAPE:
+                residual = (quotient << k) | bits.read(k)
+            else:
+                residual = bits.read(MAX_RICE_PARAMETER)
+            previous += (residual >> 1) ^ -(residual & 1)
+            values.append(previous)
+    return values
+
+def _decode_adpcm(reader, count):
+    predictor = reader.array('h', 2, 1)[0]
+    step_index = reader.bytes[reader.position]
+    reader.position += 1
+    values = []
+    for i in range(count):
+        packed = reader.bytes[reader.position + i // 2]
+        code = packed & 0x0F if i % 2 == 0 else packed >> 4
+        step = STEP_SIZES[step_index]
+        delta = step >> 3
+        if code & 4:
+            delta += step
+        if code & 2:
+            delta += step >> 1
+        if code & 1:
+            delta += step >> 2
+        predictor += -delta if code & 8 else delta
+        predictor = max(-32768, min(32767, predictor))
+        step_index = max(0, min(len(STEP_SIZES) - 1, step_index + INDEX_ADJUSTMENTS[code]))
+        values.append(predictor)
+    reader.position += (count + 1) // 2
+    return values
+
+def decode_audio_block(reader):
+    """
+    Decodes a block of audio samples written by the phone's AudioEncoder:
+    raw PCM, lossless delta plus Rice coding, or lossy IMA ADPCM.
+    """
+    mode = reader.bytes[reader.position]
+    reader.position += 1
+    count = reader.var_long()
+    if mode == DELTA_RICE:
+        return _decode_delta_rice(reader, count)
+    if mode == IMA_ADPCM:
+        return _decode_adpcm(reader, count)
+    if mode == PCM:
+        return reader.array('h', 2, count)
+    raise ValueError("Unknown audio codec {}".format(mode))
+
+def _decode_audio(reader):
+    t = reader.signed_var_long()
+    return {'t' : t, 'values' : decode_audio_block(reader)}
+
+def _decode_clustering_request(reader):
+    t = reader.signed_var_long()
+    algorithm = reader.string()
+    k = reader.signed_var_long()
+    count = reader.var_long()
+    latitudes = reader.array('d', 8, count)
+    longitudes = reader.array('d', 8, count)
+    return {'t' : t, 'algorithm' : algorithm, 'k' : k, 'latitudes' : latitudes, 'longitudes' : longitudes}
+
+_decoders = {
+    "SENSOR_AUDIO" : _decode_audio,
+    "SENSOR_CLUSTERING_REQUEST" : _decode_clustering_request
+}
+
+def is_binary(data):
+    """
+    Returns True if the data of a reading is binary encoded.
+    """
+    return isinstance(data, dict) and data.get('encoding') == BINARY
+
+def decode_reading(sensor_type, data):
+    """
+    Decodes the binary encoded data of a reading of the given sensor type
+    into the dictionary the JSON encoding would have produced.
+    """
+    frame = base64.b64decode(data['payload'])
+    reader = _Reader(frame)
+    version = reader.bytes[0]
+    if version != FORMAT_VERSION:
+        raise ValueError("Unsupported binary format version {}".format(version))
+    reader.position = 1
+    length = reader.var_long()
+    if reader.position + length != len(frame):
+        raise ValueError("Truncated {} frame".format(sensor_type))
+    return _decoders[sensor_type](reader)